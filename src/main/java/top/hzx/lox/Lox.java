@@ -1,19 +1,33 @@
 package top.hzx.lox;
 
 import top.hzx.lox.ast.Interpreter;
+import top.hzx.lox.ast.LazyBody;
 import top.hzx.lox.ast.Resolver;
+import top.hzx.lox.ast.RuntimeStats;
 import top.hzx.lox.ast.Stmt;
+import top.hzx.lox.ast.Superinstructions;
+import top.hzx.lox.cache.AstCache;
 import top.hzx.lox.err.RuntimeError;
+import top.hzx.lox.opt.Optimizer;
 import top.hzx.lox.parser.Parser;
+import top.hzx.lox.scanner.PipelinedScanner;
 import top.hzx.lox.scanner.Scanner;
 import top.hzx.lox.token.Token;
+import top.hzx.lox.token.TokenSource;
 import top.hzx.lox.token.TokenType;
+import top.hzx.lox.vm.Compiler;
+import top.hzx.lox.vm.ObjFunction;
+import top.hzx.lox.vm.VM;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 
@@ -21,25 +35,148 @@ public class Lox {
 
     private static final Interpreter interpreter = new Interpreter();
 
+    private static final VM vm = new VM();
+
+    /**
+     * 执行方式
+     */
+    private enum Backend {
+        /**
+         * 遍历语法树解释执行
+         */
+        INTERPRETER,
+        /**
+         * 编译为闭包后执行
+         */
+        CLOSURES,
+        /**
+         * 编译为字节码后由虚拟机执行
+         */
+        VM,
+    }
+
+    private static Backend backend = Backend.INTERPRETER;
+
+    /**
+     * 是否在运行结束后输出运行时统计
+     */
+    private static boolean printStats = false;
+
+    /**
+     * 语法树优化级别，0 表示不优化
+     */
+    private static Optimizer optimizer = new Optimizer(0);
+
+    /**
+     * 是否延迟解析全局函数和方法的函数体，默认在加载时完整解析，整个脚本的编译错误都在执行前报告。
+     * 延迟解析时，函数体在加载时只报告相邻 Token 就能发现的错误，其余错误在第一次调用时报告，
+     * 从未调用的函数中的这些错误不会报告，报告之前的代码已经执行
+     */
+    private static boolean lazy = false;
+
+    /**
+     * 编译后语法树的缓存，null 表示不使用缓存
+     */
+    private static AstCache cache;
+
+    /**
+     * 把常见的节点组合合并为超级指令，null 表示不合并
+     */
+    private static Superinstructions superinstructions = new Superinstructions();
+
+    /**
+     * 源文件达到这个大小时在后台线程中扫描
+     */
+    private static final long PIPELINE_THRESHOLD = 1 << 20;
+
     private static boolean hadError = false;
     private static boolean hadRuntimeError = false;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
+        String script = null;
+        for (String arg : args) {
+            if (arg.equals("--vm")) {
+                backend = Backend.VM;
+            } else if (arg.equals("--closures")) {
+                backend = Backend.CLOSURES;
+            } else if (arg.equals("--stats")) {
+                printStats = true;
+            } else if (arg.equals("--lazy")) {
+                lazy = true;
+            } else if (arg.equals("--eager")) {
+                lazy = false;
+            } else if (arg.equals("--cache")) {
+                cache = new AstCache(AstCache.defaultDirectory());
+            } else if (arg.startsWith("--cache=")) {
+                cache = new AstCache(Paths.get(arg.substring("--cache=".length())));
+            } else if (arg.equals("--no-fuse")) {
+                superinstructions = null;
+            } else if (arg.startsWith("--opt-level=")) {
+                optimizer = new Optimizer(parseOptLevel(arg.substring("--opt-level=".length())));
+            } else if (arg.startsWith("--") || script != null) {
+                usage();
+            } else {
+                script = arg;
+            }
+        }
+        if (printStats) RuntimeStats.enable();
+        // 延迟解析的函数体与其他代码一样优化
+        LazyBody.setTransform(optimizer::optimize);
+        // 字节码虚拟机不认识合并后的节点
+        if (backend != Backend.VM) LazyBody.setSuperinstructions(superinstructions);
+        if (script != null) {
             // 运行脚本
-            runFile(args[0]);
+            runFile(script);
         } else {
             // 启动解释器
             runPrompt();
         }
     }
 
+    private static int parseOptLevel(String value) {
+        try {
+            int level = Integer.parseInt(value);
+            if (level >= 0 && level <= Optimizer.MAX_LEVEL) return level;
+        } catch (NumberFormatException ignored) {
+        }
+        usage();
+        return 0;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: jlox [--vm | --closures] [--opt-level=N] [--lazy | --eager] [--no-fuse] [--cache[=DIR]] [--stats] [script]");
+        System.out.println("  --lazy   parse the bodies of global functions and methods on first call. Most compile errors inside");
+        System.out.println("           a function are then reported only when it is first called, after earlier code has run,");
+        System.out.println("           and not at all for functions that are never called. --eager (the default) parses");
+        System.out.println("           everything up front.");
+        System.exit(64);
+    }
+
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        Path file = Paths.get(path);
+        // 使用缓存时只读一次文件，计算键和扫描的是同一份内容
+        byte[] source = cache == null ? null : Files.readAllBytes(file);
+        String key = source == null ? null : cache.key(source, optimizer.getLevel());
+        List<Stmt> stmts = key == null ? null : cache.load(key);
+        if (stmts == null) {
+            // 边读文件边扫描，较大的文件在后台线程中扫描，与解析同时进行
+            InputStream in = source == null ? Files.newInputStream(file) : new ByteArrayInputStream(source);
+            long size = source == null ? Files.size(file) : source.length;
+            try (Reader reader = new InputStreamReader(in, Charset.defaultCharset())) {
+                TokenSource tokens = size >= PIPELINE_THRESHOLD ? new PipelinedScanner(reader) : new Scanner(reader);
+                // 字节码编译和缓存都需要完整的语法树
+                stmts = compile(tokens, lazy && backend != Backend.VM && cache == null);
+            }
+            // 有编译错误的脚本不缓存
+            if (stmts != null && key != null) cache.store(key, stmts);
+        }
+        if (stmts != null) execute(stmts);
+        if (printStats) {
+            RuntimeStats.report(System.err);
+            optimizer.report(System.err);
+            if (superinstructions != null && backend != Backend.VM) superinstructions.report(System.err);
+            if (cache != null) cache.report(System.err);
+        }
         if (hadError) {
             System.exit(65);
         }
@@ -55,22 +192,54 @@ public class Lox {
             System.out.print("> ");
             String line = br.readLine();
             if (line == null) break;
-            run(line);
+            run(new Scanner(line));
             hadError = false;
         }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
+    private static void run(TokenSource tokens) {
+        List<Stmt> stmts = compile(tokens, false);
+        if (stmts != null) execute(stmts);
+    }
+
+    /**
+     * 解析、计算变量位置并优化
+     *
+     * @param deferBodies 是否延迟解析全局函数和方法的函数体
+     * @return 有编译错误时返回null
+     */
+    private static List<Stmt> compile(TokenSource tokens, boolean deferBodies) {
+        Parser parser = new Parser(tokens, deferBodies);
         List<Stmt> stmts = parser.parse();
 
-        if (hadError) return;
-        Resolver resolver = new Resolver(interpreter);
+        if (hadError) return null;
+        Resolver resolver = new Resolver();
         resolver.resolve(stmts);
-        if (hadError) return;
-        interpreter.interpret(stmts);
+        if (hadError) return null;
+        List<Stmt> optimized = optimizer.optimize(stmts);
+        if (optimized != stmts) {
+            // 优化产生了新节点，重新计算变量的作用域距离和槽位
+            stmts = optimized;
+            new Resolver().resolve(stmts);
+        }
+        return stmts;
+    }
+
+    private static void execute(List<Stmt> stmts) {
+        // 在缓存写入之后合并，缓存中始终是原来的节点
+        if (superinstructions != null && backend != Backend.VM) superinstructions.fuse(stmts);
+        switch (backend) {
+            case VM:
+                ObjFunction function = new Compiler(vm).compile(stmts);
+                if (hadError) return;
+                vm.interpret(function);
+                break;
+            case CLOSURES:
+                interpreter.interpretCompiled(stmts);
+                break;
+            default:
+                interpreter.interpret(stmts);
+        }
     }
 
     public static void error(int line, String message) {
@@ -86,7 +255,7 @@ public class Lox {
     }
 
     public static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line " + error.getToken().getLine() + "]");
+        System.err.println(error.getMessage() + "\n[line " + error.getLine() + "]");
         hadRuntimeError = true;
     }
 
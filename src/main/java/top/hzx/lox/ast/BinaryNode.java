@@ -0,0 +1,365 @@
+package top.hzx.lox.ast;
+
+import top.hzx.lox.err.RuntimeError;
+import top.hzx.lox.token.Token;
+
+/**
+ * 二元运算的可执行节点
+ * <p>节点根据运行时观察到的操作数类型把自己替换为特化版本（如只处理数字的加法），
+ * 类型发生变化时退化为通用版本，不再重新特化</p>
+ */
+public abstract class BinaryNode {
+
+    protected final Expr.Binary expr;
+
+    protected BinaryNode(Expr.Binary expr) {
+        this.expr = expr;
+    }
+
+    public abstract Object execute(Object left, Object right);
+
+    /**
+     * 用新节点替换语法树上的当前节点
+     *
+     * @param node 新节点
+     * @return 新节点
+     */
+    protected final BinaryNode replace(BinaryNode node) {
+        expr.setNode(node);
+        return node;
+    }
+
+    /**
+     * 尚未执行过的节点，第一次执行时根据操作数类型完成特化
+     */
+    public static class Uninitialized extends BinaryNode {
+
+        public Uninitialized(Expr.Binary expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            return replace(specialize(left, right)).execute(left, right);
+        }
+
+        private BinaryNode specialize(Object left, Object right) {
+            switch (expr.getOperator().getType()) {
+                case EQUAL_EQUAL:
+                    return new Equal(expr);
+                case BANG_EQUAL:
+                    return new NotEqual(expr);
+                case PLUS:
+                    if (Rope.isString(left) && Rope.isString(right)) {
+                        return new ConcatString(expr);
+                    }
+                    break;
+            }
+            if (!(left instanceof Double) || !(right instanceof Double)) {
+                return new Generic(expr);
+            }
+            switch (expr.getOperator().getType()) {
+                case PLUS:
+                    return new AddDouble(expr);
+                case MINUS:
+                    return new SubtractDouble(expr);
+                case STAR:
+                    return new MultiplyDouble(expr);
+                case SLASH:
+                    return new DivideDouble(expr);
+                case GREATER:
+                    return new GreaterDouble(expr);
+                case GREATER_EQUAL:
+                    return new GreaterEqualDouble(expr);
+                case LESS:
+                    return new LessDouble(expr);
+                case LESS_EQUAL:
+                    return new LessEqualDouble(expr);
+                default:
+                    return new Generic(expr);
+            }
+        }
+    }
+
+    /**
+     * 类型发生变化，退化为通用节点后重新执行
+     */
+    protected final Object generalize(Object left, Object right) {
+        return replace(new Generic(expr)).execute(left, right);
+    }
+
+    /**
+     * 只处理两个数字、结果也是数字的节点，遇到其他类型时退化为通用节点
+     */
+    public abstract static class DoubleArithmetic extends BinaryNode {
+        private DoubleArithmetic(Expr.Binary expr) {
+            super(expr);
+        }
+
+        public abstract double executeDouble(double left, double right);
+    }
+
+    /**
+     * 比较两个数字的节点，遇到其他类型时退化为通用节点
+     */
+    public abstract static class DoubleComparison extends BinaryNode {
+        private DoubleComparison(Expr.Binary expr) {
+            super(expr);
+        }
+
+        public abstract boolean executeBoolean(double left, double right);
+    }
+
+    private static class AddDouble extends DoubleArithmetic {
+        private AddDouble(Expr.Binary expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left + (double) right;
+            }
+            return generalize(left, right);
+        }
+
+        @Override
+        public double executeDouble(double left, double right) {
+            return left + right;
+        }
+    }
+
+    private static class SubtractDouble extends DoubleArithmetic {
+        private SubtractDouble(Expr.Binary expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left - (double) right;
+            }
+            return generalize(left, right);
+        }
+
+        @Override
+        public double executeDouble(double left, double right) {
+            return left - right;
+        }
+    }
+
+    private static class MultiplyDouble extends DoubleArithmetic {
+        private MultiplyDouble(Expr.Binary expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left * (double) right;
+            }
+            return generalize(left, right);
+        }
+
+        @Override
+        public double executeDouble(double left, double right) {
+            return left * right;
+        }
+    }
+
+    private static class DivideDouble extends DoubleArithmetic {
+        private DivideDouble(Expr.Binary expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left / (double) right;
+            }
+            return generalize(left, right);
+        }
+
+        @Override
+        public double executeDouble(double left, double right) {
+            return left / right;
+        }
+    }
+
+    private static class GreaterDouble extends DoubleComparison {
+        private GreaterDouble(Expr.Binary expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left > (double) right;
+            }
+            return generalize(left, right);
+        }
+
+        @Override
+        public boolean executeBoolean(double left, double right) {
+            return left > right;
+        }
+    }
+
+    private static class GreaterEqualDouble extends DoubleComparison {
+        private GreaterEqualDouble(Expr.Binary expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left >= (double) right;
+            }
+            return generalize(left, right);
+        }
+
+        @Override
+        public boolean executeBoolean(double left, double right) {
+            return left >= right;
+        }
+    }
+
+    private static class LessDouble extends DoubleComparison {
+        private LessDouble(Expr.Binary expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left < (double) right;
+            }
+            return generalize(left, right);
+        }
+
+        @Override
+        public boolean executeBoolean(double left, double right) {
+            return left < right;
+        }
+    }
+
+    private static class LessEqualDouble extends DoubleComparison {
+        private LessEqualDouble(Expr.Binary expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left <= (double) right;
+            }
+            return generalize(left, right);
+        }
+
+        @Override
+        public boolean executeBoolean(double left, double right) {
+            return left <= right;
+        }
+    }
+
+    /**
+     * 字符串拼接，较长的结果延迟为 {@link Rope}，遇到其他类型时退化为通用节点
+     */
+    private static class ConcatString extends BinaryNode {
+        private ConcatString(Expr.Binary expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            if (Rope.isString(left) && Rope.isString(right)) {
+                return Rope.concat(left, right);
+            }
+            return generalize(left, right);
+        }
+    }
+
+    /**
+     * 相等比较对任意类型都成立，不需要类型守卫
+     */
+    private static class Equal extends BinaryNode {
+        private Equal(Expr.Binary expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            return isEqual(left, right);
+        }
+    }
+
+    private static class NotEqual extends BinaryNode {
+        private NotEqual(Expr.Binary expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            return !isEqual(left, right);
+        }
+    }
+
+    /**
+     * 通用节点，每次执行都检查操作数类型
+     */
+    private static class Generic extends BinaryNode {
+        private Generic(Expr.Binary expr) {
+            super(expr);
+        }
+
+        @Override
+        public Object execute(Object left, Object right) {
+            Token operator = expr.getOperator();
+            switch (operator.getType()) {
+                case GREATER:
+                    checkNumberOperands(operator, left, right);
+                    return (double) left > (double) right;
+                case GREATER_EQUAL:
+                    checkNumberOperands(operator, left, right);
+                    return (double) left >= (double) right;
+                case LESS:
+                    checkNumberOperands(operator, left, right);
+                    return (double) left < (double) right;
+                case LESS_EQUAL:
+                    checkNumberOperands(operator, left, right);
+                    return (double) left <= (double) right;
+                case MINUS:
+                    checkNumberOperands(operator, left, right);
+                    return (double) left - (double) right;
+                case PLUS:
+                    if (left instanceof Double && right instanceof Double) {
+                        return (double) left + (double) right;
+                    }
+                    if (Rope.isString(left) && Rope.isString(right)) {
+                        return Rope.concat(left, right);
+                    }
+                    throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+                case SLASH:
+                    checkNumberOperands(operator, left, right);
+                    return (double) left / (double) right;
+                case STAR:
+                    checkNumberOperands(operator, left, right);
+                    return (double) left * (double) right;
+                case BANG_EQUAL:
+                    return !isEqual(left, right);
+                case EQUAL_EQUAL:
+                    return isEqual(left, right);
+            }
+            return null;
+        }
+    }
+
+    private static boolean isEqual(Object left, Object right) {
+        return Rope.isEqual(left, right);
+    }
+
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator, "Operand must be a number.");
+    }
+}
@@ -0,0 +1,167 @@
+package top.hzx.lox.ast;
+
+import top.hzx.lox.err.RuntimeError;
+
+/**
+ * 函数调用的内联缓存节点
+ * <p>调用点记住最近调用过的目标（函数按声明、类和原生函数按对象本身区分），命中时跳过类型和参数个数检查直接调用。
+ * 同一调用点的参数个数是固定的，所以参数个数只在目标第一次进入缓存时检查一次。
+ * 缓存以链表形式最多保存 {@link #MAX_ENTRIES} 个目标，超过后退化为不再缓存的通用节点。
+ * 节点只负责找出检查过的调用目标，由调用点按参数个数选择 call0..call4 或参数列表完成调用</p>
+ */
+public abstract class CallNode {
+
+    /**
+     * 一个调用点最多缓存的目标个数
+     */
+    private static final int MAX_ENTRIES = 4;
+
+    protected final Expr.Call expr;
+
+    protected CallNode(Expr.Call expr) {
+        this.expr = expr;
+    }
+
+    /**
+     * 找出调用目标
+     *
+     * @param callee 被调用的值
+     * @return 检查过类型和参数个数的调用目标
+     */
+    public abstract LoxCallable lookUp(Object callee);
+
+    /**
+     * 缓存链的长度
+     */
+    protected int depth() {
+        return 0;
+    }
+
+    /**
+     * 缓存未命中的调用点，位于每条缓存链的末尾
+     */
+    public static class Uninitialized extends CallNode {
+
+        public Uninitialized(Expr.Call expr) {
+            super(expr);
+        }
+
+        @Override
+        public LoxCallable lookUp(Object callee) {
+            CallNode head = expr.getNode();
+            if (head.depth() >= MAX_ENTRIES) {
+                // 目标太多，不再缓存
+                CallNode megamorphic = new Megamorphic(expr);
+                expr.setNode(megamorphic);
+                return megamorphic.lookUp(callee);
+            }
+            if (RuntimeStats.enabled()) RuntimeStats.callMisses++;
+            LoxCallable function = checkCall(expr, callee);
+            // 检查通过后才放入缓存，新目标插在链表头部
+            expr.setNode(cache(function, head));
+            return function;
+        }
+
+        private CallNode cache(LoxCallable function, CallNode next) {
+            if (function instanceof LoxFunction) {
+                return new CachedFunction(expr, ((LoxFunction) function).getDeclaration(), next);
+            }
+            // 类和原生函数等其他可调用对象按对象本身缓存
+            return new CachedCallable(expr, function, next);
+        }
+    }
+
+    /**
+     * 缓存的一个目标，未命中时交给链表的下一个节点
+     */
+    private abstract static class Cached extends CallNode {
+
+        protected final CallNode next;
+
+        private Cached(Expr.Call expr, CallNode next) {
+            super(expr);
+            this.next = next;
+        }
+
+        @Override
+        protected int depth() {
+            return next.depth() + 1;
+        }
+    }
+
+    /**
+     * 同一个函数声明创建出的函数（包括闭包和绑定后的方法）参数个数都相同
+     */
+    private static class CachedFunction extends Cached {
+
+        private final Stmt.Function declaration;
+
+        private CachedFunction(Expr.Call expr, Stmt.Function declaration, CallNode next) {
+            super(expr, next);
+            this.declaration = declaration;
+        }
+
+        @Override
+        public LoxCallable lookUp(Object callee) {
+            if (callee instanceof LoxFunction && ((LoxFunction) callee).getDeclaration() == declaration) {
+                if (RuntimeStats.enabled()) RuntimeStats.callHits++;
+                return (LoxFunction) callee;
+            }
+            return next.lookUp(callee);
+        }
+    }
+
+    /**
+     * 类和原生函数等其他可调用对象按对象本身缓存
+     */
+    private static class CachedCallable extends Cached {
+
+        private final LoxCallable function;
+
+        private CachedCallable(Expr.Call expr, LoxCallable function, CallNode next) {
+            super(expr, next);
+            this.function = function;
+        }
+
+        @Override
+        public LoxCallable lookUp(Object callee) {
+            if (callee == function) {
+                if (RuntimeStats.enabled()) RuntimeStats.callHits++;
+                return function;
+            }
+            return next.lookUp(callee);
+        }
+    }
+
+    /**
+     * 通用节点，每次调用都检查类型和参数个数
+     */
+    private static class Megamorphic extends CallNode {
+
+        private Megamorphic(Expr.Call expr) {
+            super(expr);
+        }
+
+        @Override
+        public LoxCallable lookUp(Object callee) {
+            if (RuntimeStats.enabled()) RuntimeStats.callMegamorphic++;
+            return checkCall(expr, callee);
+        }
+    }
+
+    private static LoxCallable checkCall(Expr.Call expr, Object callee) {
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(expr.getParen(), "Can only call functions and classes.");
+        }
+        LoxCallable function = (LoxCallable) callee;
+        checkArity(expr, function);
+        return function;
+    }
+
+    static void checkArity(Expr.Call expr, LoxCallable function) {
+        int count = expr.getArguments().size();
+        if (count != function.arity()) {
+            throw new RuntimeError(expr.getParen(), "Expected " + function.arity() + " arguments but got " + count + ".");
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package top.hzx.lox.ast;
+
+import top.hzx.lox.env.Environment;
+import top.hzx.lox.env.GlobalCell;
+import top.hzx.lox.err.RuntimeError;
+import top.hzx.lox.symbol.SymbolMap;
+import top.hzx.lox.symbol.Symbols;
+import top.hzx.lox.token.Token;
+import top.hzx.lox.token.TokenType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 闭包编译器
+ * <p>遍历一次经过 Resolver 处理的语法树，把每个节点翻译成捕获了子节点和变量槽位的 Java 闭包。
+ * 执行时直接调用闭包，省去了访问者模式的双重分派和对运算符的 switch</p>
+ */
+public class ClosureCompiler implements Expr.Visitor<Evaluator>, Stmt.Visitor<Executor> {
+
+    private final Interpreter interpreter;
+
+    private final Environment globals;
+
+    public ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.getGlobals();
+    }
+
+    public Executor compile(List<Stmt> statements) {
+        Executor[] executors = new Executor[statements.size()];
+        for (int i = 0; i < executors.length; i++) {
+            executors[i] = compile(statements.get(i));
+        }
+        if (executors.length == 1) return executors[0];
+        return environment -> {
+            for (Executor executor : executors) {
+                Object result = executor.execute(environment);
+                if (result != Executor.NORMAL) return result;
+            }
+            return Executor.NORMAL;
+        };
+    }
+
+    private Executor compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    /**
+     * 编译结果保存在节点上，同一个子表达式只编译一次。
+     * 一棵语法树只由一个解释器执行，节点上的结果不会被其他编译器使用
+     */
+    private Evaluator compile(Expr expr) {
+        Evaluator evaluator = expr.getEvaluator();
+        if (evaluator == null) {
+            evaluator = expr.accept(this);
+            expr.setEvaluator(evaluator);
+        }
+        return evaluator;
+    }
+
+    // ---------------------------------------------------------------- 表达式
+
+    @Override
+    public Evaluator visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.getValue();
+        return environment -> value;
+    }
+
+    @Override
+    public Evaluator visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.getExpression());
+    }
+
+    @Override
+    public Evaluator visitVariableExpr(Expr.Variable expr) {
+        return lookUpVariable(expr.getName(), expr.getDepth(), expr.getSlot());
+    }
+
+    @Override
+    public Evaluator visitThisExpr(Expr.This expr) {
+        return lookUpVariable(expr.getKeyword(), expr.getDepth(), expr.getSlot());
+    }
+
+    private Evaluator lookUpVariable(Token name, int depth, int slot) {
+        if (depth == -1) {
+            // 单元在编译时取得，之后不再按名字查找
+            GlobalCell cell = globals.cell(name.getSymbol());
+            return environment -> cell.get(name);
+        }
+        if (depth == 0) {
+            return environment -> environment.getAt(0, slot);
+        }
+        return environment -> environment.getAt(depth, slot);
+    }
+
+    @Override
+    public Evaluator visitAssignExpr(Expr.Assign expr) {
+        Evaluator value = compile(expr.getValue());
+        Token name = expr.getName();
+        int depth = expr.getDepth();
+        int slot = expr.getSlot();
+        if (depth == -1) {
+            GlobalCell cell = globals.cell(name.getSymbol());
+            return environment -> {
+                Object result = value.evaluate(environment);
+                cell.assign(name, result);
+                return result;
+            };
+        }
+        return environment -> {
+            Object result = value.evaluate(environment);
+            environment.assignAt(depth, slot, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Evaluator visitUnaryExpr(Expr.Unary expr) {
+        Evaluator right = compile(expr.getRight());
+        if (expr.getOperator().getType() == TokenType.BANG) {
+            return environment -> !Interpreter.isTruthy(right.evaluate(environment));
+        }
+        Token operator = expr.getOperator();
+        return environment -> {
+            Object value = right.evaluate(environment);
+            if (!(value instanceof Double)) {
+                throw new RuntimeError(operator, "Operand must be a number.");
+            }
+            return -(double) value;
+        };
+    }
+
+    @Override
+    public Evaluator visitBinaryExpr(Expr.Binary expr) {
+        Evaluator left = compile(expr.getLeft());
+        Evaluator right = compile(expr.getRight());
+        BinaryNode node = expr.getNode();
+        // 与解释器共用节点上的类型特化
+        return environment -> expr.getNode().execute(left.evaluate(environment), right.evaluate(environment));
+    }
+
+    @Override
+    public Evaluator visitLogicalExpr(Expr.Logical expr) {
+        Evaluator left = compile(expr.getLeft());
+        Evaluator right = compile(expr.getRight());
+        if (expr.getOperator().getType() == TokenType.OR) {
+            return environment -> {
+                Object value = left.evaluate(environment);
+                if (Interpreter.isTruthy(value)) return value;
+                return right.evaluate(environment);
+            };
+        }
+        return environment -> {
+            Object value = left.evaluate(environment);
+            if (!Interpreter.isTruthy(value)) return value;
+            return right.evaluate(environment);
+        };
+    }
+
+    @Override
+    public Evaluator visitCallExpr(Expr.Call expr) {
+        Invoker invoker = compileArguments(expr);
+        // 方法调用直接把实例作为 this 传给方法，不创建绑定后的函数
+        if (expr.getCallee() instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.getCallee();
+            Evaluator object = compile(get.getObject());
+            return environment -> {
+                LoxInstance instance = interpreter.checkInstance(get, object.evaluate(environment));
+                LoxFunction method = interpreter.lookUpMethod(get, instance);
+                Object function = method == null ? instance.getField(get.getOffset()) : null;
+                return invoker.invoke(function, method, instance, environment);
+            };
+        }
+        if (expr.getCallee() instanceof Expr.Super) {
+            Expr.Super callee = (Expr.Super) expr.getCallee();
+            return environment -> {
+                LoxFunction method = interpreter.lookUpSuperMethod(callee, environment);
+                LoxInstance instance = interpreter.superReceiver(callee, environment);
+                return invoker.invoke(null, method, instance, environment);
+            };
+        }
+        Evaluator callee = compile(expr.getCallee());
+        return environment -> invoker.invoke(callee.evaluate(environment), null, null, environment);
+    }
+
+    /**
+     * 求值参数并完成调用，参数的个数在编译时已知
+     */
+    @FunctionalInterface
+    private interface Invoker {
+        Object invoke(Object callee, LoxFunction method, LoxInstance instance, Environment environment);
+    }
+
+    /**
+     * 按参数个数展开参数求值，参数不超过 {@link LoxCallable#MAX_FIXED_ARITY} 个时不创建参数列表
+     */
+    private Invoker compileArguments(Expr.Call expr) {
+        Evaluator[] arguments = compileAll(expr.getArguments());
+        switch (arguments.length) {
+            case 0:
+                return (callee, method, instance, environment) -> interpreter.call0(expr, callee, method, instance);
+            case 1: {
+                Evaluator a0 = arguments[0];
+                return (callee, method, instance, environment) ->
+                        interpreter.call1(expr, callee, method, instance, a0.evaluate(environment));
+            }
+            case 2: {
+                Evaluator a0 = arguments[0];
+                Evaluator a1 = arguments[1];
+                return (callee, method, instance, environment) ->
+                        interpreter.call2(expr, callee, method, instance, a0.evaluate(environment), a1.evaluate(environment));
+            }
+            case 3: {
+                Evaluator a0 = arguments[0];
+                Evaluator a1 = arguments[1];
+                Evaluator a2 = arguments[2];
+                return (callee, method, instance, environment) ->
+                        interpreter.call3(expr, callee, method, instance, a0.evaluate(environment), a1.evaluate(environment),
+                                a2.evaluate(environment));
+            }
+            case 4: {
+                Evaluator a0 = arguments[0];
+                Evaluator a1 = arguments[1];
+                Evaluator a2 = arguments[2];
+                Evaluator a3 = arguments[3];
+                return (callee, method, instance, environment) ->
+                        interpreter.call4(expr, callee, method, instance, a0.evaluate(environment), a1.evaluate(environment),
+                                a2.evaluate(environment), a3.evaluate(environment));
+            }
+            default:
+                return (callee, method, instance, environment) ->
+                        interpreter.call(expr, callee, method, instance, evaluateAll(arguments, environment));
+        }
+    }
+
+    private static List<Object> evaluateAll(Evaluator[] evaluators, Environment environment) {
+        List<Object> values = new ArrayList<>(evaluators.length);
+        for (Evaluator evaluator : evaluators) {
+            values.add(evaluator.evaluate(environment));
+        }
+        return values;
+    }
+
+    private Evaluator[] compileAll(List<Expr> exprs) {
+        Evaluator[] evaluators = new Evaluator[exprs.size()];
+        for (int i = 0; i < evaluators.length; i++) {
+            evaluators[i] = compile(exprs.get(i));
+        }
+        return evaluators;
+    }
+
+    @Override
+    public Evaluator visitGetExpr(Expr.Get expr) {
+        Evaluator object = compile(expr.getObject());
+        return environment -> interpreter.getProperty(expr, object.evaluate(environment));
+    }
+
+    /**
+     * 编译后的闭包已经没有逐个节点分派的开销，合并的节点按原节点编译
+     */
+    @Override
+    public Evaluator visitThisGetExpr(Expr.ThisGet expr) {
+        return compile(expr.getGet());
+    }
+
+    @Override
+    public Evaluator visitIncrementExpr(Expr.Increment expr) {
+        return compile(expr.getAssign());
+    }
+
+    @Override
+    public Evaluator visitCompareExpr(Expr.Compare expr) {
+        return compile(expr.getBinary());
+    }
+
+    @Override
+    public Evaluator visitSetExpr(Expr.Set expr) {
+        Evaluator object = compile(expr.getObject());
+        Evaluator value = compile(expr.getValue());
+        Token name = expr.getName();
+        return environment -> {
+            Object instance = object.evaluate(environment);
+            if (!(instance instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+            Object result = value.evaluate(environment);
+            interpreter.setProperty(expr, (LoxInstance) instance, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Evaluator visitSuperExpr(Expr.Super expr) {
+        return environment -> interpreter.lookUpSuper(expr, environment);
+    }
+
+    // ---------------------------------------------------------------- 语句
+
+    @Override
+    public Executor visitExpressionStmt(Stmt.Expression stmt) {
+        Evaluator expression = compile(stmt.getExpression());
+        return environment -> {
+            expression.evaluate(environment);
+            return Executor.NORMAL;
+        };
+    }
+
+    @Override
+    public Executor visitPrintStmt(Stmt.Print stmt) {
+        Evaluator expression = compile(stmt.getExpression());
+        return environment -> {
+            System.out.println(Interpreter.stringify(expression.evaluate(environment)));
+            return Executor.NORMAL;
+        };
+    }
+
+    @Override
+    public Executor visitPrintVariableStmt(Stmt.PrintVariable stmt) {
+        Evaluator variable = compile(stmt.getVariable());
+        return environment -> {
+            System.out.println(Interpreter.stringify(variable.evaluate(environment)));
+            return Executor.NORMAL;
+        };
+    }
+
+    @Override
+    public Executor visitVarStmt(Stmt.Var stmt) {
+        Token name = stmt.getName();
+        int slot = stmt.getSlot();
+        Evaluator initializer = stmt.getInitializer() == null ? environment -> null : compile(stmt.getInitializer());
+        return environment -> {
+            environment.define(name, slot, initializer.evaluate(environment));
+            return Executor.NORMAL;
+        };
+    }
+
+    @Override
+    public Executor visitBlockStmt(Stmt.Block stmt) {
+        Executor body = compile(stmt.getStatements());
+        int size = stmt.getScopeSize();
+        if (!stmt.isMerged()) {
+            return environment -> body.execute(new Environment(environment, size));
+        }
+        // 合并的块在外层环境中执行，顶层代码中的块共用解释器的环境
+        return size > 0 ? environment -> body.execute(interpreter.topFrame(size)) : body;
+    }
+
+    @Override
+    public Executor visitIfStmt(Stmt.If stmt) {
+        Evaluator condition = compile(stmt.getCondition());
+        Executor thenBranch = compile(stmt.getThenBranch());
+        if (stmt.getElseBranch() == null) {
+            return environment -> {
+                if (Interpreter.isTruthy(condition.evaluate(environment))) {
+                    return thenBranch.execute(environment);
+                }
+                return Executor.NORMAL;
+            };
+        }
+        Executor elseBranch = compile(stmt.getElseBranch());
+        return environment -> {
+            if (Interpreter.isTruthy(condition.evaluate(environment))) {
+                return thenBranch.execute(environment);
+            }
+            return elseBranch.execute(environment);
+        };
+    }
+
+    @Override
+    public Executor visitForStmt(Stmt.For stmt) {
+        Executor initializer = stmt.getInitializer() == null ? null : compile(stmt.getInitializer());
+        Evaluator condition = stmt.getCondition() == null ? null : compile(stmt.getCondition());
+        Evaluator increment = stmt.getIncrement() == null ? null : compile(stmt.getIncrement());
+        Executor body = compile(stmt.getBody());
+        Executor loop = environment -> {
+            if (initializer != null) initializer.execute(environment);
+            long iterations = 0;
+            try {
+                while (condition == null || Interpreter.isTruthy(condition.evaluate(environment))) {
+                    iterations++;
+                    Object result = body.execute(environment);
+                    if (result != Executor.NORMAL) return result;
+                    if (increment != null) increment.evaluate(environment);
+                }
+                return Executor.NORMAL;
+            } finally {
+                RuntimeStats.countLoop(stmt, iterations);
+            }
+        };
+        int size = stmt.getScopeSize();
+        if (!stmt.isMerged()) {
+            return environment -> loop.execute(new Environment(environment, size));
+        }
+        return size > 0 ? environment -> loop.execute(interpreter.topFrame(size)) : loop;
+    }
+
+    @Override
+    public Executor visitWhileStmt(Stmt.While stmt) {
+        Evaluator condition = compile(stmt.getCondition());
+        Executor body = compile(stmt.getBody());
+        return environment -> {
+            while (Interpreter.isTruthy(condition.evaluate(environment))) {
+                Object result = body.execute(environment);
+                if (result != Executor.NORMAL) return result;
+            }
+            return Executor.NORMAL;
+        };
+    }
+
+    @Override
+    public Executor visitFunctionStmt(Stmt.Function stmt) {
+        compileFunction(stmt);
+        Token name = stmt.getName();
+        int slot = stmt.getSlot();
+        return environment -> {
+            environment.define(name, slot, new LoxFunction(stmt, environment, false));
+            return Executor.NORMAL;
+        };
+    }
+
+    /**
+     * 编译函数体并保存在声明上，由 LoxFunction 调用时使用。
+     * 延迟解析的函数体此时还没有内容，第一次调用完成解析后再编译
+     *
+     * @param stmt 函数声明
+     */
+    void compileFunction(Stmt.Function stmt) {
+        if (stmt.getCompiledBody() == null && stmt.getLazyBody() == null) {
+            stmt.setCompiledBody(compile(stmt.getBody()));
+        }
+    }
+
+    @Override
+    public Executor visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.getValue() == null) {
+            return environment -> null;
+        }
+        return compile(stmt.getValue())::evaluate;
+    }
+
+    @Override
+    public Executor visitClassStmt(Stmt.Class stmt) {
+        Evaluator superclassEvaluator = stmt.getSuperclass() == null ? null : compile(stmt.getSuperclass());
+        for (Stmt.Function method : stmt.getMethods()) {
+            compileFunction(method);
+        }
+        String name = stmt.getName().getLexeme();
+        return environment -> {
+            Object superclass = null;
+            Environment methodEnvironment = environment;
+            if (superclassEvaluator != null) {
+                superclass = superclassEvaluator.evaluate(environment);
+                if (!(superclass instanceof LoxClass)) {
+                    throw new RuntimeError(stmt.getSuperclass().getName(), "Superclass must be a class.");
+                }
+                methodEnvironment = new Environment(environment, 1);
+                methodEnvironment.defineAt(0, superclass);
+            }
+            SymbolMap<LoxFunction> methods = new SymbolMap<>(stmt.getMethods().size());
+            for (Stmt.Function method : stmt.getMethods()) {
+                int symbol = method.getName().getSymbol();
+                methods.put(symbol, new LoxFunction(method, methodEnvironment, symbol == Symbols.INIT));
+            }
+            environment.define(stmt.getName(), stmt.getSlot(), new LoxClass(name, (LoxClass) superclass, methods));
+            return Executor.NORMAL;
+        };
+    }
+}
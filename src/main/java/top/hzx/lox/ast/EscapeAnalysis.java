@@ -0,0 +1,263 @@
+package top.hzx.lox.ast;
+
+import top.hzx.lox.token.Token;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 找出被内层函数捕获的变量所在的块和 for 循环
+ * <p>作用域的划分与 {@link Resolver} 相同。块或 for 循环初始化部分中直接声明的变量被内层函数引用时，
+ * 块每次执行都要有独立的环境，闭包才能各自保存变量；其余的块不需要自己的环境，
+ * 变量可以放进外层环境的空闲槽位。同时标记函数体中是否声明了函数或类，没有声明的函数返回后调用帧不会再被引用</p>
+ */
+final class EscapeAnalysis implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    /**
+     * 一层作用域中声明的变量
+     */
+    private static class Scope {
+        private final Set<String> names = new HashSet<>();
+        /**
+         * 作用域对应的块或 for 循环，函数和 super 的作用域为null
+         */
+        private final Stmt block;
+        /**
+         * 作用域所在函数的嵌套层数
+         */
+        private final int function;
+
+        private Scope(Stmt block, int function) {
+            this.block = block;
+            this.function = function;
+        }
+    }
+
+    private final List<Scope> scopes = new ArrayList<>();
+
+    private final Set<Stmt> captured = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * 当前所在的函数，顶层代码为null
+     */
+    private Stmt.Function currentFunction;
+
+    private int functionDepth = 0;
+
+    private EscapeAnalysis() {
+    }
+
+    /**
+     * @param statements 一段顶层代码，或者单个函数声明
+     * @return 变量被内层函数引用的块和 for 循环
+     */
+    static Set<Stmt> analyze(List<Stmt> statements) {
+        EscapeAnalysis analysis = new EscapeAnalysis();
+        analysis.analyzeAll(statements);
+        return analysis.captured;
+    }
+
+    private void analyzeAll(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            statement.accept(this);
+        }
+    }
+
+    private void analyze(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void declare(Token name) {
+        if (scopes.isEmpty()) return;
+        scopes.get(scopes.size() - 1).names.add(name.getLexeme());
+    }
+
+    private void reference(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Scope scope = scopes.get(i);
+            if (scope.names.contains(name.getLexeme())) {
+                if (scope.block != null && scope.function < functionDepth) {
+                    captured.add(scope.block);
+                }
+                return;
+            }
+        }
+    }
+
+    private void analyzeFunction(Stmt.Function stmt) {
+        // 调用帧可能被这个函数引用
+        if (currentFunction != null) currentFunction.setFrameEscapes(true);
+        Stmt.Function enclosing = currentFunction;
+        currentFunction = stmt;
+        functionDepth++;
+        stmt.setFrameEscapes(false);
+        Scope scope = new Scope(null, functionDepth);
+        for (Token param : stmt.getParams()) {
+            scope.names.add(param.getLexeme());
+        }
+        scopes.add(scope);
+        analyzeAll(stmt.getBody());
+        scopes.remove(scopes.size() - 1);
+        functionDepth--;
+        currentFunction = enclosing;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        scopes.add(new Scope(stmt, functionDepth));
+        analyzeAll(stmt.getStatements());
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        declare(stmt.getName());
+        if (stmt.getSuperclass() != null) analyze(stmt.getSuperclass());
+        // 方法中的 this 和 super 不会是块中的变量，只需要占住作用域
+        scopes.add(new Scope(null, functionDepth));
+        for (Stmt.Function method : stmt.getMethods()) {
+            analyzeFunction(method);
+        }
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        analyze(stmt.getExpression());
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        scopes.add(new Scope(stmt, functionDepth));
+        if (stmt.getInitializer() != null) stmt.getInitializer().accept(this);
+        if (stmt.getCondition() != null) analyze(stmt.getCondition());
+        if (stmt.getIncrement() != null) analyze(stmt.getIncrement());
+        stmt.getBody().accept(this);
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.getName());
+        analyzeFunction(stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        analyze(stmt.getCondition());
+        stmt.getThenBranch().accept(this);
+        if (stmt.getElseBranch() != null) stmt.getElseBranch().accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        analyze(stmt.getExpression());
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.getValue() != null) analyze(stmt.getValue());
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        declare(stmt.getName());
+        if (stmt.getInitializer() != null) analyze(stmt.getInitializer());
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        analyze(stmt.getCondition());
+        stmt.getBody().accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        analyze(expr.getValue());
+        reference(expr.getName());
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        analyze(expr.getLeft());
+        analyze(expr.getRight());
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        analyze(expr.getCallee());
+        for (Expr argument : expr.getArguments()) {
+            analyze(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        analyze(expr.getObject());
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        analyze(expr.getExpression());
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        analyze(expr.getLeft());
+        analyze(expr.getRight());
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        analyze(expr.getValue());
+        analyze(expr.getObject());
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        analyze(expr.getRight());
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        reference(expr.getName());
+        return null;
+    }
+}
@@ -0,0 +1,13 @@
+package top.hzx.lox.ast;
+
+import top.hzx.lox.env.Environment;
+
+/**
+ * 预先编译好的表达式
+ */
+@FunctionalInterface
+public interface Evaluator {
+
+    Object evaluate(Environment environment);
+
+}
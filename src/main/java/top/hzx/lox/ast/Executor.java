@@ -0,0 +1,25 @@
+package top.hzx.lox.ast;
+
+import top.hzx.lox.env.Environment;
+
+/**
+ * 预先编译好的语句
+ */
+@FunctionalInterface
+public interface Executor {
+
+    /**
+     * 语句正常执行完毕，没有遇到 return
+     */
+    Object NORMAL = new Object();
+
+    /**
+     * 执行语句
+     * <p>return 语句不抛出异常，而是把返回值沿着调用链直接返回，避免异常在无法内联的闭包之间展开</p>
+     *
+     * @param environment 当前环境
+     * @return 正常执行完毕时返回 {@link #NORMAL}，否则为 return 语句的返回值
+     */
+    Object execute(Environment environment);
+
+}
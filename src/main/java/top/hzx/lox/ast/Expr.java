@@ -3,6 +3,8 @@ package top.hzx.lox.ast;
 import java.util.List;
 
 import lombok.Getter;
+import lombok.Setter;
+import top.hzx.lox.env.GlobalCell;
 import top.hzx.lox.token.Token;
 
 @SuppressWarnings("unused")
@@ -21,6 +23,44 @@ public abstract class Expr {
         default R  visitGetExpr(Get expr) { return null; }
         default R  visitGroupingExpr(Grouping expr) { return null; }
         default R  visitVariableExpr(Variable expr) { return null; }
+        default R  visitIncrementExpr(Increment expr) { return null; }
+        default R  visitCompareExpr(Compare expr) { return null; }
+        default R  visitThisGetExpr(ThisGet expr) { return null; }
+    }
+
+    /**
+     * 节点种类，与子类一一对应，可以用 switch 代替 accept 分派
+     */
+    public enum Kind {
+        LITERAL,
+        LOGICAL,
+        SET,
+        SUPER,
+        THIS,
+        UNARY,
+        ASSIGN,
+        BINARY,
+        CALL,
+        GET,
+        GROUPING,
+        VARIABLE,
+        INCREMENT,
+        COMPARE,
+        THIS_GET,
+    }
+
+    @Getter
+    private final Kind kind;
+
+    /**
+     * 执行时缓存在节点上的数据
+     */
+    @Getter
+    @Setter
+    private Evaluator evaluator;
+
+    protected Expr(Kind kind) {
+        this.kind = kind;
     }
 
     @Getter
@@ -29,6 +69,7 @@ public abstract class Expr {
         private final Object value;
 
         public Literal(Object value) {
+            super(Kind.LITERAL);
             this.value = value;
         }
 
@@ -46,6 +87,7 @@ public abstract class Expr {
         private final Expr right;
 
         public Logical(Expr left, Token operator, Expr right) {
+            super(Kind.LOGICAL);
             this.left = left;
             this.operator = operator;
             this.right = right;
@@ -63,8 +105,15 @@ public abstract class Expr {
         private final Expr object;
         private final Token name;
         private final Expr value;
+        @Setter
+        private Shape shape;
+        @Setter
+        private int offset;
+        @Setter
+        private Shape transition;
 
         public Set(Expr object, Token name, Expr value) {
+            super(Kind.SET);
             this.object = object;
             this.name = name;
             this.value = value;
@@ -81,8 +130,15 @@ public abstract class Expr {
 
         private final Token keyword;
         private final Token method;
+        @Setter
+        private int depth = -1;
+        @Setter
+        private LoxClass superclass;
+        @Setter
+        private LoxFunction target;
 
         public Super(Token keyword, Token method) {
+            super(Kind.SUPER);
             this.keyword = keyword;
             this.method = method;
         }
@@ -97,8 +153,13 @@ public abstract class Expr {
     public static class This extends Expr {
 
         private final Token keyword;
+        @Setter
+        private int depth = -1;
+        @Setter
+        private int slot;
 
         public This(Token keyword) {
+            super(Kind.THIS);
             this.keyword = keyword;
         }
 
@@ -115,6 +176,7 @@ public abstract class Expr {
         private final Expr right;
 
         public Unary(Token operator, Expr right) {
+            super(Kind.UNARY);
             this.operator = operator;
             this.right = right;
         }
@@ -130,8 +192,15 @@ public abstract class Expr {
 
         private final Token name;
         private final Expr value;
+        @Setter
+        private int depth = -1;
+        @Setter
+        private int slot;
+        @Setter
+        private GlobalCell cell;
 
         public Assign(Token name, Expr value) {
+            super(Kind.ASSIGN);
             this.name = name;
             this.value = value;
         }
@@ -148,8 +217,11 @@ public abstract class Expr {
         private final Expr left;
         private final Token operator;
         private final Expr right;
+        @Setter
+        private BinaryNode node = new BinaryNode.Uninitialized(this);
 
         public Binary(Expr left, Token operator, Expr right) {
+            super(Kind.BINARY);
             this.left = left;
             this.operator = operator;
             this.right = right;
@@ -167,8 +239,11 @@ public abstract class Expr {
         private final Expr callee;
         private final Token paren;
         private final List<Expr> arguments;
+        @Setter
+        private CallNode node = new CallNode.Uninitialized(this);
 
         public Call(Expr callee, Token paren, List<Expr> arguments) {
+            super(Kind.CALL);
             this.callee = callee;
             this.paren = paren;
             this.arguments = arguments;
@@ -185,8 +260,17 @@ public abstract class Expr {
 
         private final Expr object;
         private final Token name;
+        @Setter
+        private Shape shape;
+        @Setter
+        private int offset;
+        @Setter
+        private LoxClass klass;
+        @Setter
+        private LoxFunction method;
 
         public Get(Expr object, Token name) {
+            super(Kind.GET);
             this.object = object;
             this.name = name;
         }
@@ -203,6 +287,7 @@ public abstract class Expr {
         private final Expr expression;
 
         public Grouping(Expr expression) {
+            super(Kind.GROUPING);
             this.expression = expression;
         }
 
@@ -216,8 +301,15 @@ public abstract class Expr {
     public static class Variable extends Expr {
 
         private final Token name;
+        @Setter
+        private int depth = -1;
+        @Setter
+        private int slot;
+        @Setter
+        private GlobalCell cell;
 
         public Variable(Token name) {
+            super(Kind.VARIABLE);
             this.name = name;
         }
 
@@ -227,6 +319,68 @@ public abstract class Expr {
         }
     }
 
+    @Getter
+    public static class Increment extends Expr {
+
+        private final Expr.Assign assign;
+        private final Expr.Variable variable;
+        private final Expr.Binary binary;
+        private final double operand;
+
+        public Increment(Expr.Assign assign, Expr.Variable variable, Expr.Binary binary, double operand) {
+            super(Kind.INCREMENT);
+            this.assign = assign;
+            this.variable = variable;
+            this.binary = binary;
+            this.operand = operand;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitIncrementExpr(this);
+        }
+    }
+
+    @Getter
+    public static class Compare extends Expr {
+
+        private final Expr.Binary binary;
+        private final Expr.Variable left;
+        private final Expr.Variable right;
+        private final Object constant;
+
+        public Compare(Expr.Binary binary, Expr.Variable left, Expr.Variable right, Object constant) {
+            super(Kind.COMPARE);
+            this.binary = binary;
+            this.left = left;
+            this.right = right;
+            this.constant = constant;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitCompareExpr(this);
+        }
+    }
+
+    @Getter
+    public static class ThisGet extends Expr {
+
+        private final Expr.Get get;
+        private final Expr.This receiver;
+
+        public ThisGet(Expr.Get get, Expr.This receiver) {
+            super(Kind.THIS_GET);
+            this.get = get;
+            this.receiver = receiver;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitThisGetExpr(this);
+        }
+    }
+
     public abstract <R> R accept(Visitor<R> visitor);
 
 }
@@ -1,23 +1,46 @@
 package top.hzx.lox.ast;
 
 import lombok.Getter;
+import lombok.Setter;
 import top.hzx.lox.Lox;
 import top.hzx.lox.env.Environment;
+import top.hzx.lox.env.GlobalCell;
 import top.hzx.lox.err.RuntimeError;
+import top.hzx.lox.symbol.SymbolMap;
+import top.hzx.lox.symbol.Symbols;
 import top.hzx.lox.token.Token;
 import top.hzx.lox.token.TokenType;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
-@Getter
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+/**
+ * 遍历语法树执行
+ * <p>语句的执行结果与 {@link Executor} 相同：正常执行完毕返回 {@link Executor#NORMAL}，
+ * 遇到 return 时返回返回值，由外层语句逐层向上传递直到函数调用处</p>
+ */
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
+    @Getter
     private final Environment globals = new Environment();
+    @Getter
     private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+
+    /**
+     * 闭包编译器，以闭包方式执行时创建
+     */
+    private ClosureCompiler compiler;
+
+    /**
+     * 顶层代码中没有被捕获的块共用的环境
+     */
+    private Environment topFrame;
+
+    /**
+     * 按节点种类用 switch 分派，为 false 时通过 accept 分派，用于比较两种方式的开销
+     */
+    @Setter
+    private boolean switchDispatch = true;
 
     public Interpreter() {
         globals.define("clock", new LoxCallable() {
@@ -28,6 +51,11 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments) {
+                return call0(interpreter);
+            }
+
+            @Override
+            public Object call0(Interpreter interpreter) {
                 return (double) System.currentTimeMillis() / 1000.0;
             }
 
@@ -48,56 +76,74 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    /**
+     * 先将语法树编译为闭包再执行
+     *
+     * @param statements 语句列表
+     */
+    public void interpretCompiled(List<Stmt> statements) {
+        try {
+            compiler().compile(statements).execute(globals);
+        } catch (RuntimeError e) {
+            Lox.runtimeError(e);
+        }
     }
 
-    public void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    /**
+     * 延迟解析的函数体完成解析后调用，以闭包方式执行时编译函数体
+     *
+     * @param declaration 函数声明
+     */
+    void bodyCompleted(Stmt.Function declaration) {
+        if (compiler != null) compiler.compileFunction(declaration);
+    }
+
+    private ClosureCompiler compiler() {
+        if (compiler == null) {
+            compiler = new ClosureCompiler(this);
+        }
+        return compiler;
+    }
+
+    /**
+     * 按节点种类直接调用对应的 visit 方法，省去 accept 和 Visitor 两次虚调用
+     */
+    private Object execute(Stmt stmt) {
+        if (!switchDispatch) return stmt.accept(this);
+        switch (stmt.getKind()) {
+            case BLOCK:
+                return visitBlockStmt((Stmt.Block) stmt);
+            case CLASS:
+                return visitClassStmt((Stmt.Class) stmt);
+            case EXPRESSION:
+                return visitExpressionStmt((Stmt.Expression) stmt);
+            case FOR:
+                return visitForStmt((Stmt.For) stmt);
+            case FUNCTION:
+                return visitFunctionStmt((Stmt.Function) stmt);
+            case IF:
+                return visitIfStmt((Stmt.If) stmt);
+            case PRINT:
+                return visitPrintStmt((Stmt.Print) stmt);
+            case RETURN:
+                return visitReturnStmt((Stmt.Return) stmt);
+            case VAR:
+                return visitVarStmt((Stmt.Var) stmt);
+            case WHILE:
+                return visitWhileStmt((Stmt.While) stmt);
+            case PRINT_VARIABLE:
+                return visitPrintVariableStmt((Stmt.PrintVariable) stmt);
+            default:
+                return stmt.accept(this);
+        }
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
         Object left = evaluate(expr.getLeft());
         Object right = evaluate(expr.getRight());
-        switch (expr.getOperator().getType()) {
-            case GREATER:
-                checkNumberOperands(expr.getOperator(), left, right);
-                return (double) left > (double) right;
-            case GREATER_EQUAL:
-                checkNumberOperands(expr.getOperator(), left, right);
-                return (double) left >= (double) right;
-            case LESS:
-                checkNumberOperands(expr.getOperator(), left, right);
-                return (double) left < (double) right;
-            case LESS_EQUAL:
-                checkNumberOperands(expr.getOperator(), left, right);
-                return (double) left <= (double) right;
-            case MINUS:
-                checkNumberOperand(expr.getOperator(), left);
-                return (double) left - (double) right;
-            case PLUS:
-                if (left instanceof Double && right instanceof Double) {
-                    return (double) left + (double) right;
-                }
-                if (left instanceof String && right instanceof String) {
-                    return left + (String) right;
-
-                }
-                throw new RuntimeError(expr.getOperator(), "Operands must be two numbers or two strings.");
-            case SLASH:
-                checkNumberOperands(expr.getOperator(), left, right);
-                return (double) left / (double) right;
-            case STAR:
-                checkNumberOperands(expr.getOperator(), left, right);
-                return (double) left * (double) right;
-            case BANG_EQUAL:
-                return !isEqual(left, right);
-            case EQUAL_EQUAL:
-                return isEqual(left, right);
-
-        }
-        return null;
+        // 由节点根据观察到的操作数类型选择特化的实现
+        return expr.getNode().execute(left, right);
     }
 
     @Override
@@ -115,6 +161,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         Object right = evaluate(expr.getRight());
         switch (expr.getOperator().getType()) {
             case MINUS:
+                if (!(right instanceof Double)) {
+                    throw new RuntimeError(expr.getOperator(), "Operand must be a number.");
+                }
                 return -(double) right;
             case BANG:
                 return !isTruthy(right);
@@ -124,13 +173,20 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.getName(), expr);
+        if (expr.getDepth() != -1) {
+            return environment.getAt(expr.getDepth(), expr.getSlot());
+        }
+        GlobalCell cell = expr.getCell();
+        if (cell == null) {
+            cell = globals.cell(expr.getName().getSymbol());
+            expr.setCell(cell);
+        }
+        return cell.get(expr.getName());
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.getLexeme());
+    private Object lookUpVariable(Token name, int depth, int slot) {
+        if (depth != -1) {
+            return environment.getAt(depth, slot);
         } else {
             return globals.get(name);
         }
@@ -139,42 +195,100 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.getValue());
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.getName(), value);
-        } else {
-            globals.assign(expr.getName(), value);
+        if (expr.getDepth() != -1) {
+            environment.assignAt(expr.getDepth(), expr.getSlot(), value);
+            return value;
+        }
+        GlobalCell cell = expr.getCell();
+        if (cell == null) {
+            cell = globals.cell(expr.getName().getSymbol());
+            expr.setCell(cell);
         }
+        cell.assign(expr.getName(), value);
         return value;
     }
 
-    private Object evaluate(Expr expr) {
-        return expr.accept(this);
+    @Override
+    public Object visitIncrementExpr(Expr.Increment expr) {
+        Object value = visitVariableExpr(expr.getVariable());
+        BinaryNode node = expr.getBinary().getNode();
+        if (!(value instanceof Double) || !(node instanceof BinaryNode.DoubleArithmetic)) {
+            // 未特化或者操作数不是数字，按原来的赋值执行
+            return visitAssignExpr(expr.getAssign());
+        }
+        Double result = ((BinaryNode.DoubleArithmetic) node).executeDouble((double) value, expr.getOperand());
+        Expr.Assign assign = expr.getAssign();
+        if (assign.getDepth() != -1) {
+            environment.assignAt(assign.getDepth(), assign.getSlot(), result);
+            return result;
+        }
+        // 读取变量时已经确认全局变量存在
+        expr.getVariable().getCell().assign(assign.getName(), result);
+        return result;
     }
 
-    private boolean isTruthy(Object object) {
-        if (object == null) return false;
-        if (object instanceof Boolean) return (boolean) object;
-        return true;
+    @Override
+    public Object visitCompareExpr(Expr.Compare expr) {
+        Object left = visitVariableExpr(expr.getLeft());
+        Object right = expr.getRight() == null ? expr.getConstant() : visitVariableExpr(expr.getRight());
+        BinaryNode node = expr.getBinary().getNode();
+        if (left instanceof Double && right instanceof Double && node instanceof BinaryNode.DoubleComparison) {
+            return ((BinaryNode.DoubleComparison) node).executeBoolean((double) left, (double) right);
+        }
+        return node.execute(left, right);
     }
 
-    private boolean isEqual(Object left, Object right) {
-        if (left == null && right == null) return true;
-        if (left == null) return false;
-        return left.equals(right);
+    @Override
+    public Object visitThisGetExpr(Expr.ThisGet expr) {
+        Expr.This receiver = expr.getReceiver();
+        return getProperty(expr.getGet(), environment.getAt(receiver.getDepth(), receiver.getSlot()));
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
-        if (operand instanceof Double) return;
-        throw new RuntimeError(operator, "Operand must be a number.");
+    private Object evaluate(Expr expr) {
+        if (!switchDispatch) return expr.accept(this);
+        switch (expr.getKind()) {
+            case LITERAL:
+                return visitLiteralExpr((Expr.Literal) expr);
+            case LOGICAL:
+                return visitLogicalExpr((Expr.Logical) expr);
+            case SET:
+                return visitSetExpr((Expr.Set) expr);
+            case SUPER:
+                return visitSuperExpr((Expr.Super) expr);
+            case THIS:
+                return visitThisExpr((Expr.This) expr);
+            case UNARY:
+                return visitUnaryExpr((Expr.Unary) expr);
+            case ASSIGN:
+                return visitAssignExpr((Expr.Assign) expr);
+            case BINARY:
+                return visitBinaryExpr((Expr.Binary) expr);
+            case CALL:
+                return visitCallExpr((Expr.Call) expr);
+            case GET:
+                return visitGetExpr((Expr.Get) expr);
+            case GROUPING:
+                return visitGroupingExpr((Expr.Grouping) expr);
+            case VARIABLE:
+                return visitVariableExpr((Expr.Variable) expr);
+            case INCREMENT:
+                return visitIncrementExpr((Expr.Increment) expr);
+            case COMPARE:
+                return visitCompareExpr((Expr.Compare) expr);
+            case THIS_GET:
+                return visitThisGetExpr((Expr.ThisGet) expr);
+            default:
+                return expr.accept(this);
+        }
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
-        if (left instanceof Double && right instanceof Double) return;
-        throw new RuntimeError(operator, "Operand must be a number.");
+    public static boolean isTruthy(Object object) {
+        if (object == null) return false;
+        if (object instanceof Boolean) return (boolean) object;
+        return true;
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
         if (object instanceof Double) {
             String text = object.toString();
@@ -187,36 +301,68 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Object visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.getInitializer() != null) {
             value = evaluate(stmt.getInitializer());
         }
-        environment.define(stmt.getName().getLexeme(), value);
-        return null;
+        environment.define(stmt.getName(), stmt.getSlot(), value);
+        return Executor.NORMAL;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Object visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.getExpression());
-        return null;
+        return Executor.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Object visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.getExpression());
         System.out.println(stringify(value));
-        return null;
+        return Executor.NORMAL;
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.getStatements(), new Environment(environment));
-        return null;
+    public Object visitPrintVariableStmt(Stmt.PrintVariable stmt) {
+        System.out.println(stringify(visitVariableExpr(stmt.getVariable())));
+        return Executor.NORMAL;
+    }
+
+    @Override
+    public Object visitBlockStmt(Stmt.Block stmt) {
+        return executeBlock(stmt.getStatements(), scope(stmt.isMerged(), stmt.getScopeSize()));
+    }
+
+    /**
+     * 取得块或 for 循环执行时使用的环境
+     *
+     * @param merged    变量没有被捕获
+     * @param scopeSize Resolver 计算的环境大小
+     * @return 没有被捕获时在当前环境中执行，顶层代码中的作用域共用 {@link #topFrame}
+     */
+    private Environment scope(boolean merged, int scopeSize) {
+        if (!merged) return new Environment(environment, scopeSize);
+        if (scopeSize > 0) return topFrame(scopeSize);
+        return environment;
+    }
+
+    /**
+     * 取得顶层代码中合并的块使用的环境
+     * <p>这些块在顶层代码中依次执行，不会同时使用；块中的变量没有被函数引用，块结束后环境不会再被访问，
+     * 所有块可以共用同一个环境</p>
+     *
+     * @param size 块需要的槽位数
+     */
+    Environment topFrame(int size) {
+        if (topFrame == null || topFrame.getSlots().length < size) {
+            topFrame = new Environment(globals, size);
+        }
+        return topFrame;
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Object visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if (stmt.getSuperclass() != null) {
             superclass = evaluate(stmt.getSuperclass());
@@ -224,16 +370,15 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 throw new RuntimeError(stmt.getSuperclass().getName(), "Superclass must be a class.");
             }
         }
-        environment.define(stmt.getName().getLexeme(), null);
         if (stmt.getSuperclass() != null) {
             // 新建super环境
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            environment = new Environment(environment, 1);
+            environment.defineAt(0, superclass);
         }
-        Map<String, LoxFunction> methods = new HashMap<>();
+        SymbolMap<LoxFunction> methods = new SymbolMap<>(stmt.getMethods().size());
         for (Stmt.Function method : stmt.getMethods()) {
-            LoxFunction function = new LoxFunction(method, environment, method.getName().getLexeme().equals("init"));
-            methods.put(method.getName().getLexeme(), function);
+            int symbol = method.getName().getSymbol();
+            methods.put(symbol, new LoxFunction(method, environment, symbol == Symbols.INIT));
         }
 
         LoxClass klass = new LoxClass(stmt.getName().getLexeme(), (LoxClass) superclass, methods);
@@ -241,30 +386,43 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             // 弹出supper环境
             environment = environment.getEnclosing();
         }
-        environment.assign(stmt.getName(), klass);
-        return null;
+        // 方法体只在调用时才会访问类名，故而在类对象创建后再定义即可
+        environment.define(stmt.getName(), stmt.getSlot(), klass);
+        return Executor.NORMAL;
     }
 
-    public void executeBlock(List<Stmt> statements, Environment environment) {
+    /**
+     * 在给定环境中执行语句列表
+     *
+     * @return 正常执行完毕时返回 {@link Executor#NORMAL}，否则为 return 语句的返回值
+     */
+    public Object executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
-            for (Stmt statement : statements) {
-                execute(statement);
-            }
+            return executeStatements(statements);
         } finally {
             this.environment = previous;
         }
     }
 
+    private Object executeStatements(List<Stmt> statements) {
+        // 按下标遍历，不为每次执行创建迭代器
+        for (int i = 0; i < statements.size(); i++) {
+            Object result = execute(statements.get(i));
+            if (result != Executor.NORMAL) return result;
+        }
+        return Executor.NORMAL;
+    }
+
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Object visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.getCondition()))) {
-            execute(stmt.getThenBranch());
+            return execute(stmt.getThenBranch());
         } else if (stmt.getElseBranch() != null) {
-            execute(stmt.getElseBranch());
+            return execute(stmt.getElseBranch());
         }
-        return null;
+        return Executor.NORMAL;
     }
 
     @Override
@@ -287,77 +445,259 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
 
         Object value = evaluate(expr.getValue());
-        ((LoxInstance) object).set(expr.getName(), value);
+        setProperty(expr, (LoxInstance) object, value);
         return value;
     }
 
+    /**
+     * 设置字段，调用点缓存上次见到的形状、字段下标以及添加字段后的形状
+     */
+    void setProperty(Expr.Set expr, LoxInstance instance, Object value) {
+        Shape shape = instance.getShape();
+        if (shape == expr.getShape()) {
+            if (expr.getTransition() == null) {
+                instance.setField(expr.getOffset(), value);
+            } else {
+                instance.addField(expr.getTransition(), value);
+            }
+            return;
+        }
+        int symbol = expr.getName().getSymbol();
+        int offset = shape.getOffset(symbol);
+        Shape transition = offset >= 0 ? null : shape.addField(symbol);
+        expr.setShape(shape);
+        expr.setOffset(offset);
+        expr.setTransition(transition);
+        if (transition == null) {
+            instance.setField(offset, value);
+        } else {
+            instance.addField(transition, value);
+        }
+    }
+
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
-        // super 只允许在method中使用，故而super表达式上一层是this环境
-        // this 环境在下一层，故而distance-1
-        LoxInstance object = (LoxInstance) environment.getAt(distance - 1, "this");
-        LoxFunction method = superclass.findMethod(expr.getMethod().getLexeme());
-        if (method == null) {
-            throw new RuntimeError(expr.getMethod(), "Undefined property '" + expr.getMethod().getLexeme() + "'.");
+        return lookUpSuper(expr, environment);
+    }
+
+    Object lookUpSuper(Expr.Super expr, Environment environment) {
+        return lookUpSuperMethod(expr, environment).bind(superReceiver(expr, environment));
+    }
+
+    /**
+     * super 表达式所在方法的 this
+     */
+    LoxInstance superReceiver(Expr.Super expr, Environment environment) {
+        // super 只允许在method中使用，this 保存在方法调用帧的第一个槽位，调用帧在super环境的下一层，故而distance-1
+        return (LoxInstance) environment.getAt(expr.getDepth() - 1, 0);
+    }
+
+    LoxFunction lookUpSuperMethod(Expr.Super expr, Environment environment) {
+        LoxClass superclass = (LoxClass) environment.getAt(expr.getDepth(), 0);
+        // 调用点缓存父类和找到的方法，同一个类声明多次执行时父类可能不同
+        if (superclass != expr.getSuperclass()) {
+            LoxFunction method = superclass.findMethod(expr.getMethod().getSymbol());
+            if (method == null) {
+                throw new RuntimeError(expr.getMethod(), "Undefined property '" + expr.getMethod().getLexeme() + "'.");
+            }
+            expr.setSuperclass(superclass);
+            expr.setTarget(method);
         }
-        return method.bind(object);
+        return expr.getTarget();
     }
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.getKeyword(), expr);
+        return lookUpVariable(expr.getKeyword(), expr.getDepth(), expr.getSlot());
+    }
+
+    @Override
+    public Object visitForStmt(Stmt.For stmt) {
+        Environment previous = this.environment;
+        try {
+            this.environment = scope(stmt.isMerged(), stmt.getScopeSize());
+            return loop(stmt);
+        } finally {
+            this.environment = previous;
+        }
+    }
+
+    /**
+     * 在循环的作用域中执行 for 循环，初始化部分只执行一次
+     */
+    private Object loop(Stmt.For stmt) {
+        if (stmt.getInitializer() != null) execute(stmt.getInitializer());
+        Expr condition = stmt.getCondition();
+        Expr increment = stmt.getIncrement();
+        Stmt body = stmt.getBody();
+        long iterations = 0;
+        try {
+            while (condition == null || isTruthy(evaluate(condition))) {
+                iterations++;
+                Object result = execute(body);
+                if (result != Executor.NORMAL) return result;
+                if (increment != null) evaluate(increment);
+            }
+            return Executor.NORMAL;
+        } finally {
+            RuntimeStats.countLoop(stmt, iterations);
+        }
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Object visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.getCondition()))) {
-            execute(stmt.getBody());
+            Object result = execute(stmt.getBody());
+            if (result != Executor.NORMAL) return result;
         }
-        return null;
+        return Executor.NORMAL;
     }
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.getCallee());
-
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.getArguments()) {
-            arguments.add(evaluate(argument));
-        }
-        if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.getParen(), "Can only call functions and classes.");
+        Object callee = null;
+        LoxFunction method = null;
+        LoxInstance instance = null;
+        if (expr.getCallee() instanceof Expr.Get) {
+            // 调用 obj.method() 时直接把实例作为 this 传给方法，不创建绑定后的函数
+            Expr.Get get = (Expr.Get) expr.getCallee();
+            instance = checkInstance(get, evaluate(get.getObject()));
+            method = lookUpMethod(get, instance);
+            // 字段中保存的函数按普通调用处理
+            if (method == null) callee = instance.getField(get.getOffset());
+        } else if (expr.getCallee() instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super) expr.getCallee();
+            method = lookUpSuperMethod(superExpr, environment);
+            instance = superReceiver(superExpr, environment);
+        } else {
+            callee = evaluate(expr.getCallee());
         }
-        LoxCallable function = (LoxCallable) callee;
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.getParen(), "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
+
+        // 参数从左到右求值后直接传给固定参数个数的入口
+        List<Expr> arguments = expr.getArguments();
+        switch (arguments.size()) {
+            case 0:
+                return call0(expr, callee, method, instance);
+            case 1:
+                return call1(expr, callee, method, instance, evaluate(arguments.get(0)));
+            case 2:
+                return call2(expr, callee, method, instance, evaluate(arguments.get(0)), evaluate(arguments.get(1)));
+            case 3:
+                return call3(expr, callee, method, instance, evaluate(arguments.get(0)), evaluate(arguments.get(1)),
+                        evaluate(arguments.get(2)));
+            case 4:
+                return call4(expr, callee, method, instance, evaluate(arguments.get(0)), evaluate(arguments.get(1)),
+                        evaluate(arguments.get(2)), evaluate(arguments.get(3)));
+            default:
+                List<Object> values = new ArrayList<>(arguments.size());
+                for (Expr argument : arguments) {
+                    values.add(evaluate(argument));
+                }
+                return call(expr, callee, method, instance, values);
         }
-        return function.call(this, arguments);
+    }
+
+    /**
+     * 完成一次调用：method 不为null时以 instance 作为 this 调用方法，否则由调用点上的内联缓存检查并找出 callee 的调用目标
+     * <p>方法只有被当作值使用时（如赋值给变量）才通过 bind 创建绑定后的函数</p>
+     */
+    Object call(Expr.Call expr, Object callee, LoxFunction method, LoxInstance instance, List<Object> arguments) {
+        if (method != null) return checkArity(expr, method).call(this, instance, arguments);
+        return expr.getNode().lookUp(callee).call(this, arguments);
+    }
+
+    Object call0(Expr.Call expr, Object callee, LoxFunction method, LoxInstance instance) {
+        if (method != null) return checkArity(expr, method).call0(this, instance);
+        return expr.getNode().lookUp(callee).call0(this);
+    }
+
+    Object call1(Expr.Call expr, Object callee, LoxFunction method, LoxInstance instance, Object a0) {
+        if (method != null) return checkArity(expr, method).call1(this, instance, a0);
+        return expr.getNode().lookUp(callee).call1(this, a0);
+    }
+
+    Object call2(Expr.Call expr, Object callee, LoxFunction method, LoxInstance instance, Object a0, Object a1) {
+        if (method != null) return checkArity(expr, method).call2(this, instance, a0, a1);
+        return expr.getNode().lookUp(callee).call2(this, a0, a1);
+    }
+
+    Object call3(Expr.Call expr, Object callee, LoxFunction method, LoxInstance instance,
+                 Object a0, Object a1, Object a2) {
+        if (method != null) return checkArity(expr, method).call3(this, instance, a0, a1, a2);
+        return expr.getNode().lookUp(callee).call3(this, a0, a1, a2);
+    }
+
+    Object call4(Expr.Call expr, Object callee, LoxFunction method, LoxInstance instance,
+                 Object a0, Object a1, Object a2, Object a3) {
+        if (method != null) return checkArity(expr, method).call4(this, instance, a0, a1, a2, a3);
+        return expr.getNode().lookUp(callee).call4(this, a0, a1, a2, a3);
+    }
+
+    private static LoxFunction checkArity(Expr.Call expr, LoxFunction method) {
+        CallNode.checkArity(expr, method);
+        return method;
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
-        Object object = evaluate(expr.getObject());
+        return getProperty(expr, evaluate(expr.getObject()));
+    }
+
+    Object getProperty(Expr.Get expr, Object object) {
+        LoxInstance instance = checkInstance(expr, object);
+        LoxFunction method = lookUpMethod(expr, instance);
+        if (method == null) {
+            return instance.getField(expr.getOffset());
+        }
+        // 方法被当作值使用时才创建绑定了实例的函数
+        return method.bind(instance);
+    }
+
+    LoxInstance checkInstance(Expr.Get expr, Object object) {
         if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.getName());
+            return (LoxInstance) object;
         }
         throw new RuntimeError(expr.getName(), "Only instances have properties.");
     }
 
+    /**
+     * 查找属性，调用点缓存上次见到的形状、字段下标以及类和方法
+     *
+     * @return 属性是字段时返回null，字段下标保存在调用点上；否则返回未绑定的方法
+     */
+    LoxFunction lookUpMethod(Expr.Get expr, LoxInstance instance) {
+        Shape shape = instance.getShape();
+        if (shape != expr.getShape()) {
+            expr.setShape(shape);
+            expr.setOffset(shape.getOffset(expr.getName().getSymbol()));
+        }
+        if (expr.getOffset() >= 0) {
+            return null;
+        }
+        LoxClass klass = instance.getKlass();
+        if (klass != expr.getKlass()) {
+            LoxFunction method = klass.findMethod(expr.getName().getSymbol());
+            if (method == null) {
+                throw new RuntimeError(expr.getName(), "Undefined property '" + expr.getName().getLexeme() + "'.");
+            }
+            expr.setKlass(klass);
+            expr.setMethod(method);
+        }
+        return expr.getMethod();
+    }
+
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
+    public Object visitFunctionStmt(Stmt.Function stmt) {
         LoxFunction function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.getName().getLexeme(), function);
-        return null;
+        environment.define(stmt.getName(), stmt.getSlot(), function);
+        return Executor.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
-        Object value = null;
-        if (stmt.getValue() != null) value = evaluate(stmt.getValue());
-        // 使用异常包装返回值，并throw出去。跳过所有的程序栈
-        throw new Return(value);
+    public Object visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.getValue() == null) return null;
+        // 返回值沿着外层语句的执行结果传递到函数调用处
+        return evaluate(stmt.getValue());
     }
 }
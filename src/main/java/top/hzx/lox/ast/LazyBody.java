@@ -0,0 +1,81 @@
+package top.hzx.lox.ast;
+
+import top.hzx.lox.err.RuntimeError;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * 还没有解析的函数体
+ * <p>预解析时只做括号匹配，记下函数体的 Token，第一次调用时才完整解析、优化并由 Resolver 计算变量位置，
+ * 之前声明的函数体是空列表。只有全局作用域中声明的函数和类的方法会延迟，它们的函数体只能引用全局变量，
+ * 延迟处理不影响其他代码的 Resolver 和优化结果</p>
+ */
+public abstract class LazyBody {
+
+    /**
+     * 解析后对函数体做的变换，参数和结果都是只含这一个函数声明的列表
+     */
+    private static UnaryOperator<List<Stmt>> transform = UnaryOperator.identity();
+
+    /**
+     * 计算变量位置后合并超级指令，null 表示不合并
+     */
+    private static Superinstructions superinstructions;
+
+    /**
+     * 声明所在的上下文，由 Resolver 在跳过函数体时记录
+     */
+    Resolver.FunctionType functionType = Resolver.FunctionType.FUNCTION;
+
+    Resolver.ClassType classType = Resolver.ClassType.NONE;
+
+    protected LazyBody() {
+        if (RuntimeStats.enabled()) RuntimeStats.lazyBodies++;
+    }
+
+    /**
+     * 设置解析后对函数体做的变换，如优化
+     */
+    public static void setTransform(UnaryOperator<List<Stmt>> transform) {
+        LazyBody.transform = transform;
+    }
+
+    public static void setSuperinstructions(Superinstructions superinstructions) {
+        LazyBody.superinstructions = superinstructions;
+    }
+
+    /**
+     * 完整解析函数体
+     *
+     * @return 函数体的语句，有语法错误时返回null
+     */
+    protected abstract List<Stmt> parse();
+
+    /**
+     * 解析、优化并计算变量位置，结果填入声明
+     *
+     * @param declaration 函数体延迟解析的声明
+     * @throws RuntimeError 函数体有编译错误，错误已经报告
+     */
+    static void complete(Stmt.Function declaration) {
+        LazyBody lazy = declaration.getLazyBody();
+        List<Stmt> body = lazy.parse();
+        if (body != null) {
+            Stmt.Function parsed = new Stmt.Function(declaration.getName(), declaration.getParams(), body);
+            Stmt.Function optimized = (Stmt.Function) transform.apply(Collections.singletonList(parsed)).get(0);
+            if (new Resolver().resolveDeferred(optimized, lazy.functionType, lazy.classType)) {
+                if (superinstructions != null) superinstructions.fuse(optimized.getBody());
+                declaration.getBody().addAll(optimized.getBody());
+                declaration.setScopeSize(optimized.getScopeSize());
+                declaration.setFrameEscapes(optimized.isFrameEscapes());
+                declaration.setLazyBody(null);
+                if (RuntimeStats.enabled()) RuntimeStats.lazyBodiesParsed++;
+                return;
+            }
+        }
+        throw new RuntimeError(declaration.getName(),
+                "Body of '" + declaration.getName().getLexeme() + "' has compile errors.");
+    }
+}
@@ -1,11 +1,42 @@
 package top.hzx.lox.ast;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public interface LoxCallable {
 
+    /**
+     * 有固定参数个数入口的最大参数个数，参数更多的调用使用参数列表
+     */
+    int MAX_FIXED_ARITY = 4;
+
     int arity();
 
     Object call(Interpreter interpreter, List<Object> arguments);
 
+    /**
+     * 参数个数固定的调用入口，调用前已经检查过参数个数
+     * <p>实现类直接覆盖这些方法时，调用不需要创建参数列表；默认实现转为参数列表调用 {@link #call}</p>
+     */
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, Collections.emptyList());
+    }
+
+    default Object call1(Interpreter interpreter, Object a0) {
+        return call(interpreter, Collections.singletonList(a0));
+    }
+
+    default Object call2(Interpreter interpreter, Object a0, Object a1) {
+        return call(interpreter, Arrays.asList(a0, a1));
+    }
+
+    default Object call3(Interpreter interpreter, Object a0, Object a1, Object a2) {
+        return call(interpreter, Arrays.asList(a0, a1, a2));
+    }
+
+    default Object call4(Interpreter interpreter, Object a0, Object a1, Object a2, Object a3) {
+        return call(interpreter, Arrays.asList(a0, a1, a2, a3));
+    }
+
 }
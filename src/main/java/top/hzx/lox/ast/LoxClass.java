@@ -1,9 +1,12 @@
 package top.hzx.lox.ast;
 
 import lombok.Getter;
+import lombok.Setter;
+
+import top.hzx.lox.symbol.SymbolMap;
+import top.hzx.lox.symbol.Symbols;
 
 import java.util.List;
-import java.util.Map;
 
 @Getter
 public class LoxClass implements LoxCallable {
@@ -12,12 +15,42 @@ public class LoxClass implements LoxCallable {
 
     private final LoxClass superclass;
 
-    private final Map<String, LoxFunction> methods;
+    /**
+     * 展开后的方法表，以方法名的符号编号为键，包含从父类继承且没有被覆盖的方法，创建后不再改变
+     */
+    private final SymbolMap<LoxFunction> methods;
+
+    /**
+     * init方法，没有定义时为null
+     */
+    private final LoxFunction initializer;
+
+    private final int arity;
+
+    /**
+     * 实例的初始形状，本类实例的形状都由它转换而来
+     */
+    private final Shape rootShape = new Shape();
+
+    /**
+     * 实例的字段个数，新实例按这个大小分配字段数组
+     */
+    @Setter
+    private int instanceSize;
 
-    public LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
+    public LoxClass(String name, LoxClass superclass, SymbolMap<LoxFunction> methods) {
         this.superclass = superclass;
         this.name = name;
-        this.methods = methods;
+        // 创建类时把父类的方法表合并进来，查找方法时不必沿继承链逐级查找
+        SymbolMap<LoxFunction> table = new SymbolMap<>();
+        if (superclass != null) {
+            table.putAll(superclass.methods);
+        }
+        table.putAll(methods);
+        this.methods = table;
+        this.initializer = table.get(Symbols.INIT);
+        // 如果用户自己定义了init方法，则使用该方法的arity
+        this.arity = initializer == null ? 0 : initializer.arity();
     }
 
     @Override
@@ -27,30 +60,55 @@ public class LoxClass implements LoxCallable {
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
-        if (initializer == null) return 0;
-        // 如果用户自己定义了init方法，则返回该方法的arity
-        return initializer.arity();
+        return arity;
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
         if (initializer != null) {
             // 调用用户定义的init方法
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.call(interpreter, instance, arguments);
         }
         return instance;
     }
 
-    public LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
-        if (superclass != null) {
-            return superclass.findMethod(name);
-        }
-        return null;
+    @Override
+    public Object call0(Interpreter interpreter) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) initializer.call0(interpreter, instance);
+        return instance;
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a0) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) initializer.call1(interpreter, instance, a0);
+        return instance;
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a0, Object a1) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) initializer.call2(interpreter, instance, a0, a1);
+        return instance;
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a0, Object a1, Object a2) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) initializer.call3(interpreter, instance, a0, a1, a2);
+        return instance;
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a0, Object a1, Object a2, Object a3) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) initializer.call4(interpreter, instance, a0, a1, a2, a3);
+        return instance;
+    }
+
+    public LoxFunction findMethod(int symbol) {
+        return methods.get(symbol);
     }
 }
@@ -1,21 +1,53 @@
 package top.hzx.lox.ast;
 
+import lombok.Getter;
 import top.hzx.lox.env.Environment;
 
+import java.util.Arrays;
 import java.util.List;
 
 public class LoxFunction implements LoxCallable {
 
+    @Getter
     private final Stmt.Function declaration;
 
     private final Environment closure;
 
     private final boolean isInitializer;
 
+    /**
+     * 绑定的实例，调用时保存在调用帧的第一个槽位，普通函数和未绑定的方法为null
+     */
+    private final LoxInstance receiver;
+
+    /**
+     * 可以复用的调用帧，与绑定后的方法共用
+     */
+    private final Frames frames;
+
+    /**
+     * 函数体中没有声明函数或类时，返回后调用帧不会再被引用，下一次调用可以复用。
+     * 帧按递归深度依次取用，同时进行的调用各自使用不同的帧；解释器是单线程的，不需要同步
+     */
+    private static class Frames {
+        private Environment[] stack = new Environment[4];
+        /**
+         * 正在使用的帧数
+         */
+        private int active = 0;
+    }
+
     public LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+        this(declaration, closure, isInitializer, null, new Frames());
+    }
+
+    private LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer, LoxInstance receiver,
+                        Frames frames) {
         this.closure = closure;
         this.declaration = declaration;
         this.isInitializer = isInitializer;
+        this.receiver = receiver;
+        this.frames = frames;
     }
 
     @Override
@@ -25,22 +57,140 @@ public class LoxFunction implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.getParams().size(); i++) {
-            environment.define(declaration.getParams().get(i).getLexeme(), arguments.get(i));
+        return call(interpreter, receiver, arguments);
+    }
+
+    /**
+     * 以指定实例作为 this 调用方法，不需要先创建绑定后的函数
+     *
+     * @param interpreter 解释器
+     * @param receiver    this，普通函数为null
+     * @param arguments   参数
+     * @return 返回值
+     */
+    Object call(Interpreter interpreter, LoxInstance receiver, List<Object> arguments) {
+        Environment environment = frame(interpreter, receiver);
+        for (int i = 0; i < arguments.size(); i++) {
+            define(environment, receiver, i, arguments.get(i));
         }
+        return execute(interpreter, receiver, environment);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return call0(interpreter, receiver);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a0) {
+        return call1(interpreter, receiver, a0);
+    }
 
+    @Override
+    public Object call2(Interpreter interpreter, Object a0, Object a1) {
+        return call2(interpreter, receiver, a0, a1);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a0, Object a1, Object a2) {
+        return call3(interpreter, receiver, a0, a1, a2);
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a0, Object a1, Object a2, Object a3) {
+        return call4(interpreter, receiver, a0, a1, a2, a3);
+    }
+
+    /**
+     * 以指定实例作为 this、参数个数固定的调用，参数直接放入调用帧
+     */
+    Object call0(Interpreter interpreter, LoxInstance receiver) {
+        return execute(interpreter, receiver, frame(interpreter, receiver));
+    }
+
+    Object call1(Interpreter interpreter, LoxInstance receiver, Object a0) {
+        Environment environment = frame(interpreter, receiver);
+        define(environment, receiver, 0, a0);
+        return execute(interpreter, receiver, environment);
+    }
+
+    Object call2(Interpreter interpreter, LoxInstance receiver, Object a0, Object a1) {
+        Environment environment = frame(interpreter, receiver);
+        define(environment, receiver, 0, a0);
+        define(environment, receiver, 1, a1);
+        return execute(interpreter, receiver, environment);
+    }
+
+    Object call3(Interpreter interpreter, LoxInstance receiver, Object a0, Object a1, Object a2) {
+        Environment environment = frame(interpreter, receiver);
+        define(environment, receiver, 0, a0);
+        define(environment, receiver, 1, a1);
+        define(environment, receiver, 2, a2);
+        return execute(interpreter, receiver, environment);
+    }
+
+    Object call4(Interpreter interpreter, LoxInstance receiver, Object a0, Object a1, Object a2, Object a3) {
+        Environment environment = frame(interpreter, receiver);
+        define(environment, receiver, 0, a0);
+        define(environment, receiver, 1, a1);
+        define(environment, receiver, 2, a2);
+        define(environment, receiver, 3, a3);
+        return execute(interpreter, receiver, environment);
+    }
+
+    /**
+     * 取得调用帧，方法的 this 放在第一个槽位。函数体延迟解析时，第一次调用先完成解析
+     * <p>调用帧会被闭包引用的函数每次新建，其余函数复用 {@link #frames} 中的帧，由 {@link #execute} 返回时归还</p>
+     */
+    private Environment frame(Interpreter interpreter, LoxInstance receiver) {
+        if (declaration.getLazyBody() != null) {
+            LazyBody.complete(declaration);
+            interpreter.bodyCompleted(declaration);
+        }
+        Environment environment;
+        if (declaration.isFrameEscapes()) {
+            environment = new Environment(closure, declaration.getScopeSize());
+        } else {
+            if (frames.active == frames.stack.length) {
+                frames.stack = Arrays.copyOf(frames.stack, frames.active * 2);
+            }
+            environment = frames.stack[frames.active];
+            if (environment == null) {
+                environment = new Environment(closure, declaration.getScopeSize());
+                frames.stack[frames.active] = environment;
+            }
+            frames.active++;
+        }
+        if (receiver != null) {
+            environment.defineAt(0, receiver);
+        }
+        return environment;
+    }
+
+    /**
+     * 放入第 index 个参数，方法的参数排在 this 之后
+     */
+    private void define(Environment environment, LoxInstance receiver, int index, Object value) {
+        environment.defineAt(receiver == null ? index : index + 1, value);
+    }
+
+    private Object execute(Interpreter interpreter, LoxInstance receiver, Environment environment) {
         try {
-            // 使用异常拦截返回值
-            interpreter.executeBlock(declaration.getBody(), environment);
-        } catch (Return returnValue) {
-            // 如果是初始化器没有返回值的return语句，则返回this
-            if (isInitializer) return closure.getAt(0, "this");
-            return returnValue.getValue();
+            return run(interpreter, receiver, environment);
+        } finally {
+            if (!declaration.isFrameEscapes()) frames.active--;
         }
-        // 如果是初始化器则返回this
-        if (isInitializer) return closure.getAt(0, "this");
-        return null;
+    }
+
+    private Object run(Interpreter interpreter, LoxInstance receiver, Environment environment) {
+        Executor body = declaration.getCompiledBody();
+        // 编译后的函数体和语法树的执行结果相同：NORMAL 表示没有执行 return
+        Object result = body != null
+                ? body.execute(environment)
+                : interpreter.executeBlock(declaration.getBody(), environment);
+        // 初始化器总是返回this
+        if (isInitializer) return receiver;
+        return result == Executor.NORMAL ? null : result;
     }
 
     @Override
@@ -49,8 +199,6 @@ public class LoxFunction implements LoxCallable {
     }
 
     public LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, closure, isInitializer, instance, frames);
     }
 }
@@ -1,19 +1,27 @@
 package top.hzx.lox.ast;
 
-import top.hzx.lox.err.RuntimeError;
-import top.hzx.lox.token.Token;
+import lombok.Getter;
 
-import java.util.Map;
-import java.util.HashMap;
+import java.util.Arrays;
 
 public class LoxInstance {
 
+    @Getter
     private final LoxClass klass;
 
-    private final Map<String, Object> fields = new HashMap<>();
+    /**
+     * 当前形状，决定字段在数组中的下标
+     */
+    @Getter
+    private Shape shape;
+
+    private Object[] fields;
 
     public LoxInstance(LoxClass klass) {
         this.klass = klass;
+        this.shape = klass.getRootShape();
+        // 按同类实例最终的字段个数分配，避免扩容
+        this.fields = new Object[klass.getInstanceSize()];
     }
 
     @Override
@@ -21,17 +29,29 @@ public class LoxInstance {
         return klass.getName() + " instance";
     }
 
-    public Object get(Token name) {
-        if (fields.containsKey(name.getLexeme())) {
-            return fields.get(name.getLexeme());
-        }
-        LoxFunction method = klass.findMethod(name.getLexeme()).bind(this);
-        if (method != null) return method;
+    Object getField(int offset) {
+        return fields[offset];
+    }
 
-        throw new RuntimeError(name, "Undefined property '" + name.getLexeme() + "'.");
+    void setField(int offset, Object value) {
+        fields[offset] = value;
     }
 
-    public void set(Token name, Object value) {
-        fields.put(name.getLexeme(), value);
+    /**
+     * 转换到多一个字段的形状，新字段的值保存在最后一个下标
+     *
+     * @param next  添加字段后的形状
+     * @param value 新字段的值
+     */
+    void addField(Shape next, Object value) {
+        int size = next.size();
+        if (size > fields.length) {
+            fields = Arrays.copyOf(fields, size);
+            if (size > klass.getInstanceSize()) {
+                klass.setInstanceSize(size);
+            }
+        }
+        fields[size - 1] = value;
+        shape = next;
     }
 }
@@ -3,8 +3,11 @@ package top.hzx.lox.ast;
 import top.hzx.lox.Lox;
 import top.hzx.lox.token.Token;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 /**
@@ -14,25 +17,78 @@ import java.util.Stack;
  */
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
-    private final Interpreter interpreter;
+    private final Stack<Scope> scopes = new Stack<>();
 
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    /**
+     * 变量被内层函数引用、需要自己的环境的块和 for 循环
+     */
+    private Set<Stmt> captured = Collections.emptySet();
 
     private FunctionType currentFunction = FunctionType.NONE;
 
     private ClassType currentClass = ClassType.NONE;
 
-    public Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    /**
+     * 是否报告过错误
+     */
+    private boolean hadError = false;
+
+    /**
+     * 作用域中的局部变量
+     */
+    private static class Local {
+        /**
+         * 在环境中的槽位
+         */
+        private final int slot;
+        /**
+         * 是否已经完成初始化
+         */
+        private boolean defined = false;
+
+        private Local(int slot) {
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * 一层词法作用域
+     * <p>函数、super 和被捕获的块在运行时有自己的环境；其余的块合并进外层环境，
+     * 变量占用外层环境中的槽位，块结束后槽位留给后面的块复用</p>
+     */
+    private static class Scope {
+        private final Map<String, Local> locals = new HashMap<>();
+        /**
+         * 运行时保存本作用域变量的环境所对应的作用域，有自己的环境时是自身
+         */
+        private final Scope owner;
+        /**
+         * 下一个空闲槽位，只在 owner 上使用
+         */
+        private int next = 0;
+        /**
+         * 环境需要的槽位数，只在 owner 上使用
+         */
+        private int size = 0;
+
+        private Scope(Scope enclosing) {
+            this.owner = enclosing == null ? this : enclosing.owner;
+        }
+
+        private int allocate() {
+            int slot = owner.next++;
+            owner.size = Math.max(owner.size, owner.next);
+            return slot;
+        }
     }
 
-    private enum ClassType {
+    enum ClassType {
         NONE,
         CLASS,
         SUBCLASS,
     }
 
-    private enum FunctionType {
+    enum FunctionType {
         NONE,
         FUNCTION,
         INITIALIZER,
@@ -40,14 +96,64 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     private void beginScope() {
-        scopes.push(new java.util.HashMap<>());
+        scopes.push(new Scope(null));
+    }
+
+    /**
+     * 开始一个合并进外层环境的作用域
+     */
+    private void beginMergedScope() {
+        scopes.push(new Scope(scopes.peek()));
     }
 
     private void endScope() {
         scopes.pop();
     }
 
+    /**
+     * 在当前作用域中直接定义一个变量，如 this 和 super
+     *
+     * @param name 变量名
+     */
+    private void defineImplicit(String name) {
+        Local local = new Local(scopes.peek().allocate());
+        local.defined = true;
+        scopes.peek().locals.put(name, local);
+    }
+
+    /**
+     * 解析延迟的函数体，作用域按声明时 Resolver 记录的上下文重建
+     *
+     * @param stmt      函数体已经解析的声明
+     * @param type      函数的类型
+     * @param enclosing 声明所在类的类型
+     * @return 没有错误时返回 true
+     */
+    boolean resolveDeferred(Stmt.Function stmt, FunctionType type, ClassType enclosing) {
+        captured = EscapeAnalysis.analyze(Collections.singletonList(stmt));
+        currentClass = enclosing;
+        if (enclosing == ClassType.SUBCLASS) {
+            beginScope();
+            defineImplicit("super");
+        }
+        resolveFunction(stmt, type);
+        if (enclosing == ClassType.SUBCLASS) {
+            endScope();
+        }
+        return !hadError;
+    }
+
+    private void error(Token token, String message) {
+        Lox.error(token, message);
+        hadError = true;
+    }
+
     public void resolve(List<Stmt> statements) {
+        captured = EscapeAnalysis.analyze(statements);
+        resolveAll(statements);
+    }
+
+    private void resolveAll(List<Stmt> statements) {
         for (Stmt statement : statements) {
             resolve(statement);
         }
@@ -63,20 +169,59 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        boolean merged = !captured.contains(stmt);
+        stmt.setScopeSize(resolveScope(merged, () -> resolveAll(stmt.getStatements())));
+        stmt.setMerged(merged);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        boolean merged = !captured.contains(stmt);
+        stmt.setScopeSize(resolveScope(merged, () -> {
+            if (stmt.getInitializer() != null) resolve(stmt.getInitializer());
+            if (stmt.getCondition() != null) resolve(stmt.getCondition());
+            resolve(stmt.getBody());
+            if (stmt.getIncrement() != null) resolve(stmt.getIncrement());
+        }));
+        stmt.setMerged(merged);
+        return null;
+    }
+
+    /**
+     * 在新的作用域中解析块或 for 循环
+     *
+     * @param merged 作用域中的变量没有被捕获
+     * @param body   解析作用域内容
+     * @return 运行时需要的环境大小，在外层环境中执行时为 0
+     */
+    private int resolveScope(boolean merged, Runnable body) {
+        if (merged && !scopes.isEmpty()) {
+            // 变量放进外层环境，执行时不创建环境
+            beginMergedScope();
+            Scope owner = scopes.peek().owner;
+            int next = owner.next;
+            body.run();
+            owner.next = next;
+            endScope();
+            return 0;
+        }
+        // 顶层代码中最外层的作用域没有被捕获时，运行时复用同一个环境
         beginScope();
-        resolve(stmt.getStatements());
+        body.run();
+        int size = scopes.peek().size;
         endScope();
-        return null;
+        return size;
     }
 
     @Override
     public Void visitClassStmt(Stmt.Class stmt) {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
-        declare(stmt.getName());
+        stmt.setSlot(declare(stmt.getName()));
         define(stmt.getName());
         if (stmt.getSuperclass() != null && stmt.getName().getLexeme().equals(stmt.getSuperclass().getName().getLexeme())) {
-            Lox.error(stmt.getSuperclass().getName(), "A class can't inherit from itself.");
+            error(stmt.getSuperclass().getName(), "A class can't inherit from itself.");
         }
         if (stmt.getSuperclass() != null) {
             currentClass = ClassType.SUBCLASS;
@@ -84,10 +229,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         }
         if (stmt.getSuperclass() != null) {
             beginScope();
-            scopes.peek().put("super", true);
+            defineImplicit("super");
         }
-        beginScope();
-        scopes.peek().put("this", true);
         for (Stmt.Function method : stmt.getMethods()) {
             FunctionType declaration = FunctionType.METHOD;
             if (method.getName().getLexeme().equals("init")) {
@@ -95,7 +238,6 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             }
             resolveFunction(method, declaration);
         }
-        endScope();
         if (stmt.getSuperclass() != null) {
             endScope();
         }
@@ -105,7 +247,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.getName());
+        stmt.setSlot(declare(stmt.getName()));
         if (stmt.getInitializer() != null) {
             resolve(stmt.getInitializer());
         }
@@ -113,64 +255,112 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
+    /**
+     * 在当前作用域中声明变量
+     *
+     * @return 分配的槽位，全局变量返回 -1
+     */
+    private int declare(Token name) {
+        if (scopes.isEmpty()) return -1;
 
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.getLexeme())) {
-            Lox.error(name, "Already variable with this name in this scope.");
+        Scope scope = scopes.peek();
+        Local local = scope.locals.get(name.getLexeme());
+        if (local != null) {
+            error(name, "Already variable with this name in this scope.");
+            return local.slot;
         }
-        scope.put(name.getLexeme(), false);
+        local = new Local(scope.allocate());
+        scope.locals.put(name.getLexeme(), local);
+        return local.slot;
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.getLexeme(), true);
+        scopes.peek().locals.get(name.getLexeme()).defined = true;
     }
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() && scopes.peek().get(expr.getName().getLexeme()) == Boolean.FALSE) {
-            Lox.error(expr.getName(), "Can't read local variable in its own initializer.");
+        if (!scopes.isEmpty()) {
+            Local local = scopes.peek().locals.get(expr.getName().getLexeme());
+            if (local != null && !local.defined) {
+                error(expr.getName(), "Can't read local variable in its own initializer.");
+            }
         }
 
-        resolveLocal(expr, expr.getName());
+        int depth = resolveLocal(expr.getName());
+        expr.setDepth(depth);
+        if (depth != -1) expr.setSlot(slotOf(expr.getName()));
         return null;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    /**
+     * 查找变量声明所在的作用域
+     *
+     * @param name 变量名
+     * @return 运行时与当前环境的距离，只计算有自己环境的作用域，全局变量返回 -1
+     */
+    private int resolveLocal(Token name) {
+        int depth = 0;
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.getLexeme())) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+            Scope scope = scopes.get(i);
+            if (scope.locals.containsKey(name.getLexeme())) {
+                return depth;
             }
+            if (scope.owner == scope) depth++;
         }
+        return -1;
+    }
+
+    /**
+     * @return 最内层的同名变量的槽位
+     */
+    private int slotOf(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Local local = scopes.get(i).locals.get(name.getLexeme());
+            if (local != null) return local.slot;
+        }
+        throw new IllegalStateException("Unresolved local '" + name.getLexeme() + "'.");
     }
 
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.getValue());
-        resolveLocal(expr, expr.getName());
+        int depth = resolveLocal(expr.getName());
+        expr.setDepth(depth);
+        if (depth != -1) expr.setSlot(slotOf(expr.getName()));
         return null;
     }
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.getName());
+        stmt.setSlot(declare(stmt.getName()));
         define(stmt.getName());
         resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
     }
 
     private void resolveFunction(Stmt.Function stmt, FunctionType type) {
+        LazyBody lazy = stmt.getLazyBody();
+        if (lazy != null) {
+            // 函数体还没有解析，记下上下文，第一次调用时再处理
+            lazy.functionType = type;
+            lazy.classType = currentClass;
+            return;
+        }
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
         beginScope();
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            // 方法的 this 保存在调用帧的第一个槽位，绑定实例时不需要额外的环境
+            defineImplicit("this");
+        }
         for (Token param : stmt.getParams()) {
             declare(param);
             define(param);
         }
-        resolve(stmt.getBody());
+        resolveAll(stmt.getBody());
+        stmt.setScopeSize(scopes.peek().size);
         endScope();
         currentFunction = enclosingFunction;
     }
@@ -198,11 +388,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Lox.error(stmt.getKeyword(), "Can't return from top-level code.");
+            error(stmt.getKeyword(), "Can't return from top-level code.");
         }
         if (stmt.getValue() != null) {
             if (currentFunction == FunctionType.INITIALIZER) {
-                Lox.error(stmt.getKeyword(), "Can't return a value from an initializer.");
+                error(stmt.getKeyword(), "Can't return a value from an initializer.");
             }
             resolve(stmt.getValue());
         }
@@ -269,21 +459,23 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitSuperExpr(Expr.Super expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.getKeyword(), "Can't use 'super' outside of a class.");
+            error(expr.getKeyword(), "Can't use 'super' outside of a class.");
         } else if (currentClass != ClassType.SUBCLASS) {
-            Lox.error(expr.getKeyword(), "Can't use 'super' in a class with no superclass.");
+            error(expr.getKeyword(), "Can't use 'super' in a class with no superclass.");
         }
-        resolveLocal(expr, expr.getKeyword());
+        expr.setDepth(resolveLocal(expr.getKeyword()));
         return null;
     }
 
     @Override
     public Void visitThisExpr(Expr.This expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.getKeyword(), "Can't use 'this' outside of a class.");
+            error(expr.getKeyword(), "Can't use 'this' outside of a class.");
             return null;
         }
-        resolveLocal(expr, expr.getKeyword());
+        int depth = resolveLocal(expr.getKeyword());
+        expr.setDepth(depth);
+        expr.setSlot(slotOf(expr.getKeyword()));
         return null;
     }
 
@@ -0,0 +1,139 @@
+package top.hzx.lox.ast;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * 延迟拼接的字符串
+ * <p>字符串相加时不复制字符，只记录左右两部分，需要内容时（打印、比较、计算哈希）才一次性展开为 {@link String}
+ * 并缓存结果。循环中反复追加字符串因此是线性的，而不是每次都复制整个前缀。
+ * 拼接结果较短时直接生成 String，Lox 中的字符串值是 String 或 Rope 之一，对脚本来说两者没有区别</p>
+ */
+public final class Rope implements CharSequence {
+
+    /**
+     * 拼接结果不超过这个长度时直接复制为 String
+     */
+    private static final int FLAT_LIMIT = 128;
+
+    /**
+     * 左右两部分，每部分是 String 或 Rope，展开后置为null，不再持有子节点
+     */
+    private CharSequence left;
+
+    private CharSequence right;
+
+    private final int length;
+
+    /**
+     * 展开后的字符串，未展开时为null
+     */
+    private String flat;
+
+    private Rope(CharSequence left, CharSequence right) {
+        this.left = left;
+        this.right = right;
+        this.length = left.length() + right.length();
+    }
+
+    /**
+     * @return 是否为 Lox 的字符串值
+     */
+    public static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    /**
+     * 拼接两个字符串值
+     *
+     * @param left  String 或 Rope
+     * @param right String 或 Rope
+     * @return String 或 Rope
+     */
+    public static Object concat(Object left, Object right) {
+        CharSequence l = (CharSequence) left;
+        CharSequence r = (CharSequence) right;
+        if (l.length() == 0) return r;
+        if (r.length() == 0) return l;
+        if (l.length() + r.length() <= FLAT_LIMIT) {
+            return l.toString().concat(r.toString());
+        }
+        return new Rope(l, r);
+    }
+
+    /**
+     * 比较两个值的内容，String 与内容相同的 Rope 相等
+     */
+    public static boolean isEqual(Object left, Object right) {
+        if (left == null && right == null) return true;
+        if (left == null) return false;
+        if (left instanceof Rope || right instanceof Rope) {
+            if (!isString(left) || !isString(right)) return false;
+            CharSequence l = (CharSequence) left;
+            CharSequence r = (CharSequence) right;
+            return l.length() == r.length() && l.toString().equals(r.toString());
+        }
+        return left.equals(right);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) {
+            flat = flatten();
+            left = null;
+            right = null;
+        }
+        return flat;
+    }
+
+    /**
+     * 用显式的栈按从左到右的顺序遍历，很长的拼接链也不会导致栈溢出
+     */
+    private String flatten() {
+        StringBuilder builder = new StringBuilder(length);
+        Deque<CharSequence> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            CharSequence part = stack.pop();
+            if (part instanceof Rope && ((Rope) part).flat == null) {
+                Rope rope = (Rope) part;
+                stack.push(rope.right);
+                stack.push(rope.left);
+            } else {
+                builder.append(part instanceof Rope ? ((Rope) part).flat : part);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 只与 Rope 比较，String.equals 不认识 Rope，与 String 相等会破坏对称性。脚本中的比较使用 {@link #isEqual}
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Rope)) return false;
+        Rope other = (Rope) o;
+        return length == other.length && toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
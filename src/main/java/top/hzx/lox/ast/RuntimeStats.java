@@ -0,0 +1,116 @@
+package top.hzx.lox.ast;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 运行时统计数据，使用 --stats 运行时在程序结束后输出
+ * <p>计数前先检查 {@link #enabled()}，没有打开统计时不写这些静态字段</p>
+ */
+public class RuntimeStats {
+
+    /**
+     * 是否统计，由 {@link #enable()} 在执行脚本之前打开
+     */
+    private static boolean requested = false;
+
+    /**
+     * 统计开关，第一次计数时读取 {@link #requested}，之后不再改变。
+     * 开关是常量，没有打开统计时 JIT 会把计数代码整个去掉
+     */
+    private static final class Switch {
+        private static final boolean ENABLED = requested;
+    }
+
+    /**
+     * 调用点缓存命中次数
+     */
+    static long callHits;
+
+    /**
+     * 调用点缓存未命中次数
+     */
+    static long callMisses;
+
+    /**
+     * 退化为通用调用的次数
+     */
+    static long callMegamorphic;
+
+    /**
+     * 预解析时延迟的函数体个数
+     */
+    static long lazyBodies;
+
+    /**
+     * 其中第一次调用时完成解析的个数
+     */
+    static long lazyBodiesParsed;
+
+    /**
+     * 执行过至少一次迭代的 for 循环
+     */
+    private static final List<Stmt.For> loops = new ArrayList<>();
+
+    /**
+     * 所有 for 循环的迭代次数
+     */
+    private static long loopIterations;
+
+    /**
+     * 报告中列出的迭代次数最多的循环个数
+     */
+    private static final int HOT_LOOPS = 5;
+
+    private RuntimeStats() {
+    }
+
+    /**
+     * 打开统计，必须在解析和执行脚本之前调用
+     */
+    public static void enable() {
+        requested = true;
+    }
+
+    static boolean enabled() {
+        return Switch.ENABLED;
+    }
+
+    /**
+     * 记录 for 循环的一次执行，循环结束时调用一次，不在每次迭代时更新
+     *
+     * @param loop       循环
+     * @param iterations 本次执行的迭代次数
+     */
+    static void countLoop(Stmt.For loop, long iterations) {
+        if (!enabled() || iterations == 0) return;
+        if (loop.getIterations() == 0) loops.add(loop);
+        loop.setIterations(loop.getIterations() + iterations);
+        loopIterations += iterations;
+    }
+
+    public static void report(PrintStream out) {
+        long calls = callHits + callMisses + callMegamorphic;
+        out.println("== runtime stats ==");
+        out.println("calls: " + calls);
+        out.println("  inline cache hit:  " + callHits + percent(callHits, calls));
+        out.println("  inline cache miss: " + callMisses + percent(callMisses, calls));
+        out.println("  megamorphic:       " + callMegamorphic + percent(callMegamorphic, calls));
+        out.println("lazy function bodies: " + lazyBodies);
+        out.println("  parsed on first call: " + lazyBodiesParsed + percent(lazyBodiesParsed, lazyBodies));
+        out.println("for loops: " + loops.size() + ", iterations: " + loopIterations);
+        List<Stmt.For> hot = new ArrayList<>(loops);
+        hot.sort(Comparator.comparingLong(Stmt.For::getIterations).reversed());
+        for (Stmt.For loop : hot.subList(0, Math.min(HOT_LOOPS, hot.size()))) {
+            out.println("  line " + loop.getKeyword().getLine() + ": " + loop.getIterations()
+                    + percent(loop.getIterations(), loopIterations));
+        }
+    }
+
+    private static String percent(long count, long total) {
+        if (total == 0) return "";
+        return String.format(" (%.2f%%)", count * 100.0 / total);
+    }
+}
@@ -0,0 +1,70 @@
+package top.hzx.lox.ast;
+
+import top.hzx.lox.symbol.SymbolMap;
+
+import java.util.Arrays;
+
+/**
+ * 实例的形状（隐藏类）
+ * <p>按相同顺序添加了相同字段的实例共享同一个形状，字段值按形状给出的下标保存在实例的数组中。
+ * 形状之间通过添加字段的转换连接成一棵树，根是类的 {@link LoxClass#getRootShape()}，没有任何字段。
+ * 每个类有自己的一棵树，转换不会删除，但随类一起回收。字段名以符号编号表示</p>
+ */
+public final class Shape {
+
+    /**
+     * 按下标排列的字段名，实例的字段通常很少，顺序查找比哈希更快也更省内存
+     */
+    private final int[] symbols;
+
+    /**
+     * 添加字段后得到的形状
+     */
+    private final SymbolMap<Shape> transitions = new SymbolMap<>(2);
+
+    /**
+     * 创建没有任何字段的根形状
+     */
+    public Shape() {
+        this(new int[0]);
+    }
+
+    private Shape(int[] symbols) {
+        this.symbols = symbols;
+    }
+
+    /**
+     * @param symbol 字段名
+     * @return 字段下标，没有该字段时返回-1
+     */
+    public int getOffset(int symbol) {
+        for (int i = 0; i < symbols.length; i++) {
+            if (symbols[i] == symbol) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * 添加字段后的形状，同一个字段的转换只创建一次
+     *
+     * @param symbol 字段名
+     * @return 新形状，新字段位于最后一个下标
+     */
+    public Shape addField(int symbol) {
+        Shape shape = transitions.get(symbol);
+        if (shape == null) {
+            int[] newSymbols = Arrays.copyOf(symbols, symbols.length + 1);
+            newSymbols[symbols.length] = symbol;
+            shape = new Shape(newSymbols);
+            transitions.put(symbol, shape);
+        }
+        return shape;
+    }
+
+    /**
+     * @return 字段个数
+     */
+    public int size() {
+        return symbols.length;
+    }
+}
@@ -3,6 +3,8 @@ package top.hzx.lox.ast;
 import java.util.List;
 
 import lombok.Getter;
+import lombok.Setter;
+import top.hzx.lox.env.GlobalCell;
 import top.hzx.lox.token.Token;
 
 @SuppressWarnings("unused")
@@ -12,20 +14,51 @@ public abstract class Stmt {
         default R  visitBlockStmt(Block stmt) { return null; }
         default R  visitClassStmt(Class stmt) { return null; }
         default R  visitExpressionStmt(Expression stmt) { return null; }
+        default R  visitForStmt(For stmt) { return null; }
         default R  visitFunctionStmt(Function stmt) { return null; }
         default R  visitIfStmt(If stmt) { return null; }
         default R  visitPrintStmt(Print stmt) { return null; }
         default R  visitReturnStmt(Return stmt) { return null; }
         default R  visitVarStmt(Var stmt) { return null; }
         default R  visitWhileStmt(While stmt) { return null; }
+        default R  visitPrintVariableStmt(PrintVariable stmt) { return null; }
+    }
+
+    /**
+     * 节点种类，与子类一一对应，可以用 switch 代替 accept 分派
+     */
+    public enum Kind {
+        BLOCK,
+        CLASS,
+        EXPRESSION,
+        FOR,
+        FUNCTION,
+        IF,
+        PRINT,
+        RETURN,
+        VAR,
+        WHILE,
+        PRINT_VARIABLE,
+    }
+
+    @Getter
+    private final Kind kind;
+
+    protected Stmt(Kind kind) {
+        this.kind = kind;
     }
 
     @Getter
     public static class Block extends Stmt {
 
         private final List<Stmt> statements;
+        @Setter
+        private boolean merged;
+        @Setter
+        private int scopeSize;
 
         public Block(List<Stmt> statements) {
+            super(Kind.BLOCK);
             this.statements = statements;
         }
 
@@ -41,8 +74,11 @@ public abstract class Stmt {
         private final Token name;
         private final Expr.Variable superclass;
         private final List<Stmt.Function> methods;
+        @Setter
+        private int slot = -1;
 
         public Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
+            super(Kind.CLASS);
             this.name = name;
             this.superclass = superclass;
             this.methods = methods;
@@ -60,6 +96,7 @@ public abstract class Stmt {
         private final Expr expression;
 
         public Expression(Expr expression) {
+            super(Kind.EXPRESSION);
             this.expression = expression;
         }
 
@@ -69,14 +106,55 @@ public abstract class Stmt {
         }
     }
 
+    @Getter
+    public static class For extends Stmt {
+
+        private final Token keyword;
+        private final Stmt initializer;
+        private final Expr condition;
+        private final Expr increment;
+        private final Stmt body;
+        @Setter
+        private boolean merged;
+        @Setter
+        private int scopeSize;
+        @Setter
+        private long iterations;
+
+        public For(Token keyword, Stmt initializer, Expr condition, Expr increment, Stmt body) {
+            super(Kind.FOR);
+            this.keyword = keyword;
+            this.initializer = initializer;
+            this.condition = condition;
+            this.increment = increment;
+            this.body = body;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitForStmt(this);
+        }
+    }
+
     @Getter
     public static class Function extends Stmt {
 
         private final Token name;
         private final List<Token> params;
         private final List<Stmt> body;
+        @Setter
+        private LazyBody lazyBody;
+        @Setter
+        private int slot = -1;
+        @Setter
+        private int scopeSize;
+        @Setter
+        private boolean frameEscapes;
+        @Setter
+        private Executor compiledBody;
 
         public Function(Token name, List<Token> params, List<Stmt> body) {
+            super(Kind.FUNCTION);
             this.name = name;
             this.params = params;
             this.body = body;
@@ -96,6 +174,7 @@ public abstract class Stmt {
         private final Stmt elseBranch;
 
         public If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
+            super(Kind.IF);
             this.condition = condition;
             this.thenBranch = thenBranch;
             this.elseBranch = elseBranch;
@@ -113,6 +192,7 @@ public abstract class Stmt {
         private final Expr expression;
 
         public Print(Expr expression) {
+            super(Kind.PRINT);
             this.expression = expression;
         }
 
@@ -129,6 +209,7 @@ public abstract class Stmt {
         private final Expr value;
 
         public Return(Token keyword, Expr value) {
+            super(Kind.RETURN);
             this.keyword = keyword;
             this.value = value;
         }
@@ -144,8 +225,11 @@ public abstract class Stmt {
 
         private final Token name;
         private final Expr initializer;
+        @Setter
+        private int slot = -1;
 
         public Var(Token name, Expr initializer) {
+            super(Kind.VAR);
             this.name = name;
             this.initializer = initializer;
         }
@@ -163,6 +247,7 @@ public abstract class Stmt {
         private final Stmt body;
 
         public While(Expr condition, Stmt body) {
+            super(Kind.WHILE);
             this.condition = condition;
             this.body = body;
         }
@@ -173,6 +258,22 @@ public abstract class Stmt {
         }
     }
 
+    @Getter
+    public static class PrintVariable extends Stmt {
+
+        private final Expr.Variable variable;
+
+        public PrintVariable(Expr.Variable variable) {
+            super(Kind.PRINT_VARIABLE);
+            this.variable = variable;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitPrintVariableStmt(this);
+        }
+    }
+
     @SuppressWarnings("all")
     public abstract <R> R accept(Visitor<R> visitor);
 
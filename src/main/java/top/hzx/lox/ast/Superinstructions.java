@@ -0,0 +1,327 @@
+package top.hzx.lox.ast;
+
+import top.hzx.lox.token.TokenType;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 超级指令：把常见的语法树片段合并为一个节点，树遍历解释器一次分派就执行完
+ * <ul>
+ *     <li>x = x + 常数（以及 - * /）：{@link Expr.Increment}，数字运算不经过 Binary 和 Literal 节点</li>
+ *     <li>变量与变量或数字常量比较：{@link Expr.Compare}，结果直接由比较节点算出，不装箱中间值</li>
+ *     <li>this.字段：{@link Expr.ThisGet}，直接从调用帧取出实例</li>
+ *     <li>print 变量：{@link Stmt.PrintVariable}</li>
+ * </ul>
+ * <p>这几种模式按 {@code IdiomReport} 对 bench 目录的统计选出，是循环中出现最多的节点组合。
+ * 在 Resolver 之后运行，合并后的节点保留原节点，操作数类型不符合预期时按原节点执行，结果和报错与合并前相同。
+ * 语句列表原地替换，函数声明和代码块仍是原来的对象；其他含有被替换子节点的节点重新创建，并复制 Resolver 写入的字段。
+ * 字节码虚拟机和语法树缓存不使用合并后的节点</p>
+ */
+public class Superinstructions implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    private int increments = 0;
+
+    private int compares = 0;
+
+    private int thisGets = 0;
+
+    private int printVariables = 0;
+
+    /**
+     * 原地合并语句列表中的节点
+     *
+     * @param statements 已经由 Resolver 处理过的语句
+     */
+    public void fuse(List<Stmt> statements) {
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt statement = statements.get(i);
+            Stmt fused = rewrite(statement);
+            if (fused != statement) statements.set(i, fused);
+        }
+    }
+
+    public void report(PrintStream out) {
+        out.println("== superinstructions ==");
+        out.printf("%-22s %d%n", "increment", increments);
+        out.printf("%-22s %d%n", "compare", compares);
+        out.printf("%-22s %d%n", "this-get", thisGets);
+        out.printf("%-22s %d%n", "print-variable", printVariables);
+    }
+
+    private Stmt rewrite(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    private Expr rewrite(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    /**
+     * 两个变量是否是同一个声明
+     */
+    private static boolean sameVariable(Expr.Assign assign, Expr.Variable variable) {
+        return assign.getName().getLexeme().equals(variable.getName().getLexeme())
+                && assign.getDepth() == variable.getDepth()
+                && assign.getSlot() == variable.getSlot();
+    }
+
+    private static boolean isNumber(Expr expr) {
+        return expr instanceof Expr.Literal && ((Expr.Literal) expr).getValue() instanceof Double;
+    }
+
+    // ---------------------------------------------------------------- 语句
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        fuse(stmt.getStatements());
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        for (Stmt.Function method : stmt.getMethods()) {
+            fuse(method.getBody());
+        }
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.getExpression());
+        if (expression == stmt.getExpression()) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        Stmt initializer = rewrite(stmt.getInitializer());
+        Expr condition = rewrite(stmt.getCondition());
+        Expr increment = rewrite(stmt.getIncrement());
+        Stmt body = rewrite(stmt.getBody());
+        if (initializer == stmt.getInitializer() && condition == stmt.getCondition()
+                && increment == stmt.getIncrement() && body == stmt.getBody()) {
+            return stmt;
+        }
+        Stmt.For fused = new Stmt.For(stmt.getKeyword(), initializer, condition, increment, body);
+        fused.setMerged(stmt.isMerged());
+        fused.setScopeSize(stmt.getScopeSize());
+        return fused;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        // 延迟解析的函数体此时为空，解析完成后由 LazyBody 合并
+        fuse(stmt.getBody());
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.getCondition());
+        Stmt thenBranch = rewrite(stmt.getThenBranch());
+        Stmt elseBranch = rewrite(stmt.getElseBranch());
+        if (condition == stmt.getCondition() && thenBranch == stmt.getThenBranch() && elseBranch == stmt.getElseBranch()) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        if (stmt.getExpression() instanceof Expr.Variable) {
+            printVariables++;
+            return new Stmt.PrintVariable((Expr.Variable) stmt.getExpression());
+        }
+        Expr expression = rewrite(stmt.getExpression());
+        if (expression == stmt.getExpression()) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        Expr value = rewrite(stmt.getValue());
+        if (value == stmt.getValue()) return stmt;
+        return new Stmt.Return(stmt.getKeyword(), value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = rewrite(stmt.getInitializer());
+        if (initializer == stmt.getInitializer()) return stmt;
+        Stmt.Var fused = new Stmt.Var(stmt.getName(), initializer);
+        fused.setSlot(stmt.getSlot());
+        return fused;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.getCondition());
+        Stmt body = rewrite(stmt.getBody());
+        if (condition == stmt.getCondition() && body == stmt.getBody()) return stmt;
+        return new Stmt.While(condition, body);
+    }
+
+    @Override
+    public Stmt visitPrintVariableStmt(Stmt.PrintVariable stmt) {
+        return stmt;
+    }
+
+    // ---------------------------------------------------------------- 表达式
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        if (expr.getValue() instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr.getValue();
+            if (binary.getLeft() instanceof Expr.Variable && isNumber(binary.getRight())
+                    && sameVariable(expr, (Expr.Variable) binary.getLeft())) {
+                switch (binary.getOperator().getType()) {
+                    case PLUS:
+                    case MINUS:
+                    case STAR:
+                    case SLASH:
+                        increments++;
+                        return new Expr.Increment(expr, (Expr.Variable) binary.getLeft(), binary,
+                                (double) ((Expr.Literal) binary.getRight()).getValue());
+                }
+            }
+        }
+        Expr value = rewrite(expr.getValue());
+        if (value == expr.getValue()) return expr;
+        Expr.Assign fused = new Expr.Assign(expr.getName(), value);
+        fused.setDepth(expr.getDepth());
+        fused.setSlot(expr.getSlot());
+        return fused;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        if (isComparison(expr.getOperator().getType()) && expr.getLeft() instanceof Expr.Variable) {
+            if (expr.getRight() instanceof Expr.Variable) {
+                compares++;
+                return new Expr.Compare(expr, (Expr.Variable) expr.getLeft(), (Expr.Variable) expr.getRight(), null);
+            }
+            if (isNumber(expr.getRight())) {
+                compares++;
+                return new Expr.Compare(expr, (Expr.Variable) expr.getLeft(), null,
+                        ((Expr.Literal) expr.getRight()).getValue());
+            }
+        }
+        Expr left = rewrite(expr.getLeft());
+        Expr right = rewrite(expr.getRight());
+        if (left == expr.getLeft() && right == expr.getRight()) return expr;
+        return new Expr.Binary(left, expr.getOperator(), right);
+    }
+
+    private static boolean isComparison(TokenType type) {
+        switch (type) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = expr.getCallee();
+        Expr rewrittenCallee;
+        if (callee instanceof Expr.Get) {
+            // 方法调用由解释器直接处理，不合并 this.method 本身
+            Expr.Get get = (Expr.Get) callee;
+            Expr object = rewrite(get.getObject());
+            rewrittenCallee = object == get.getObject() ? get : new Expr.Get(object, get.getName());
+        } else {
+            rewrittenCallee = rewrite(callee);
+        }
+        List<Expr> arguments = new ArrayList<>(expr.getArguments().size());
+        boolean modified = rewrittenCallee != callee;
+        for (Expr argument : expr.getArguments()) {
+            Expr rewritten = rewrite(argument);
+            arguments.add(rewritten);
+            modified |= rewritten != argument;
+        }
+        if (!modified) return expr;
+        return new Expr.Call(rewrittenCallee, expr.getParen(), arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        if (expr.getObject() instanceof Expr.This) {
+            thisGets++;
+            return new Expr.ThisGet(expr, (Expr.This) expr.getObject());
+        }
+        Expr object = rewrite(expr.getObject());
+        if (object == expr.getObject()) return expr;
+        return new Expr.Get(object, expr.getName());
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = rewrite(expr.getExpression());
+        if (expression == expr.getExpression()) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = rewrite(expr.getLeft());
+        Expr right = rewrite(expr.getRight());
+        if (left == expr.getLeft() && right == expr.getRight()) return expr;
+        return new Expr.Logical(left, expr.getOperator(), right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = rewrite(expr.getObject());
+        Expr value = rewrite(expr.getValue());
+        if (object == expr.getObject() && value == expr.getValue()) return expr;
+        return new Expr.Set(object, expr.getName(), value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.getRight());
+        if (right == expr.getRight()) return expr;
+        return new Expr.Unary(expr.getOperator(), right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitIncrementExpr(Expr.Increment expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitCompareExpr(Expr.Compare expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisGetExpr(Expr.ThisGet expr) {
+        return expr;
+    }
+}
@@ -0,0 +1,185 @@
+package top.hzx.lox.cache;
+
+import top.hzx.lox.ast.Stmt;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * 编译后语法树的持久缓存
+ * <p>脚本经过扫描、解析、Resolver 和优化后的语法树写入缓存目录，文件名是源码内容的哈希（连同格式版本和优化级别），
+ * 同一份源码再次运行时直接读回语法树，跳过前面所有步骤。源码修改后哈希改变，旧文件自然不再命中。
+ * 文件内容带有摘要，读取时先校验，被截断或改动过的文件不会被解码。
+ * 缓存只是加速手段，读写失败都当作未命中处理，不影响脚本运行</p>
+ */
+public class AstCache {
+
+    private static final String SUFFIX = ".loxc";
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path directory;
+
+    private int hits = 0;
+
+    private int misses = 0;
+
+    /**
+     * 读取或写入缓存文件的累计耗时，纳秒
+     */
+    private long loadNanos = 0;
+
+    private long storeNanos = 0;
+
+    public AstCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return 默认的缓存目录 ~/.cache/jlox
+     */
+    public static Path defaultDirectory() {
+        return Paths.get(System.getProperty("user.home"), ".cache", "jlox");
+    }
+
+    /**
+     * 计算缓存的键。调用方传入的必须是接下来要扫描的同一份字节，
+     * 否则读取之间源文件被修改时，缓存的语法树会对应另一份源码
+     *
+     * @param source   源文件的内容
+     * @param optLevel 优化级别，不同级别得到的语法树不同
+     * @return 十六进制的哈希值
+     */
+    public String key(byte[] source, int optLevel) {
+        MessageDigest digest = sha256();
+        digest.update((byte) AstFormat.VERSION);
+        digest.update((byte) optLevel);
+        digest.update(source);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // 每个 Java 平台都必须支持 SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Path file(String key) {
+        return directory.resolve(key + SUFFIX);
+    }
+
+    /**
+     * 读取缓存的语法树
+     *
+     * @return 没有缓存或缓存无效时返回null
+     */
+    public List<Stmt> load(String key) {
+        long start = System.nanoTime();
+        List<Stmt> statements = null;
+        try {
+            // 一次读入整个文件，逐个字段解码比经过流读取快得多
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file(key)));
+            if (in.getInt() == AstFormat.MAGIC && in.getInt() == AstFormat.VERSION && readKey(in).equals(key)
+                    && checkDigest(in)) {
+                statements = new AstReader(in).read();
+            }
+        } catch (NoSuchFileException ignored) {
+            // 还没有缓存
+        } catch (IOException | RuntimeException ignored) {
+            // 文件损坏或不完整，重新编译后覆盖
+        }
+        loadNanos += System.nanoTime() - start;
+        if (statements == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return statements;
+    }
+
+    /**
+     * 读取 {@link DataOutputStream#writeUTF(String)} 写出的键，键只含 ASCII 字符
+     */
+    private static String readKey(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * 读取文件头中的摘要，与其余内容的摘要比较，读取后位置停在内容的开头
+     */
+    private static boolean checkDigest(ByteBuffer in) {
+        byte[] expected = new byte[AstFormat.DIGEST_SIZE];
+        in.get(expected);
+        MessageDigest digest = sha256();
+        digest.update(in.array(), in.position(), in.remaining());
+        return MessageDigest.isEqual(expected, digest.digest());
+    }
+
+    /**
+     * 写入语法树，先写临时文件再改名，并发运行的进程不会读到写了一半的文件
+     */
+    public void store(String key, List<Stmt> statements) {
+        long start = System.nanoTime();
+        Path temp = null;
+        try {
+            // 先在内存中写出内容，摘要写在文件头中
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(BUFFER_SIZE);
+            try (DataOutputStream out = new DataOutputStream(payload)) {
+                new AstWriter(out).write(statements);
+            }
+            byte[] bytes = payload.toByteArray();
+            Files.createDirectories(directory);
+            temp = Files.createTempFile(directory, key, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp), BUFFER_SIZE))) {
+                out.writeInt(AstFormat.MAGIC);
+                out.writeInt(AstFormat.VERSION);
+                out.writeUTF(key);
+                out.write(sha256().digest(bytes));
+                out.write(bytes);
+            }
+            Files.move(temp, file(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+        } catch (IOException ignored) {
+            // 写不了缓存时只是下次仍然需要编译
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        storeNanos += System.nanoTime() - start;
+    }
+
+    public void report(PrintStream out) {
+        out.println("== ast cache ==");
+        out.printf("%-22s %d%n", "hits", hits);
+        out.printf("%-22s %d%n", "misses", misses);
+        out.printf("%-22s %.1f ms%n", "load", loadNanos / 1e6);
+        out.printf("%-22s %.1f ms%n", "store", storeNanos / 1e6);
+    }
+}
@@ -0,0 +1,60 @@
+package top.hzx.lox.cache;
+
+/**
+ * 语法树缓存文件的格式
+ * <p>文件头是魔数、格式版本、源码的哈希和其余内容的 SHA-256 摘要，之后按先序依次写出每个节点：一个字节的标签，然后是节点的各个字段。
+ * 字符串只在第一次出现时写出内容，之后只写编号。语法树节点的字段有变化时必须增加 {@link #VERSION}，
+ * 旧版本的缓存文件会被忽略</p>
+ */
+final class AstFormat {
+
+    static final int MAGIC = 0x4C4F5843; // "LOXC"
+
+    static final int VERSION = 4;
+
+    /**
+     * 内容摘要的字节数
+     */
+    static final int DIGEST_SIZE = 32;
+
+    // 语句
+    static final byte BLOCK = 1;
+    static final byte CLASS = 2;
+    static final byte EXPRESSION = 3;
+    static final byte FUNCTION = 4;
+    static final byte IF = 5;
+    static final byte PRINT = 6;
+    static final byte RETURN = 7;
+    static final byte VAR = 8;
+    static final byte WHILE = 9;
+    static final byte FOR = 10;
+
+    // 表达式
+    static final byte LITERAL = 20;
+    static final byte LOGICAL = 21;
+    static final byte SET = 22;
+    static final byte SUPER = 23;
+    static final byte THIS = 24;
+    static final byte UNARY = 25;
+    static final byte ASSIGN = 26;
+    static final byte BINARY = 27;
+    static final byte CALL = 28;
+    static final byte GET = 29;
+    static final byte GROUPING = 30;
+    static final byte VARIABLE = 31;
+
+    /**
+     * 可选的子节点不存在
+     */
+    static final byte NULL = 0;
+
+    // 字面量的类型
+    static final byte NIL = 0;
+    static final byte TRUE = 1;
+    static final byte FALSE = 2;
+    static final byte NUMBER = 3;
+    static final byte STRING = 4;
+
+    private AstFormat() {
+    }
+}
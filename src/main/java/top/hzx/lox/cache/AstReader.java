@@ -0,0 +1,241 @@
+package top.hzx.lox.cache;
+
+import top.hzx.lox.ast.Expr;
+import top.hzx.lox.ast.Stmt;
+import top.hzx.lox.symbol.Symbols;
+import top.hzx.lox.token.Token;
+import top.hzx.lox.token.TokenType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static top.hzx.lox.cache.AstFormat.*;
+
+/**
+ * 读回 {@link AstWriter} 写出的语法树
+ * <p>读回的节点带有 Resolver 计算过的变量位置，可以直接执行。文件内容不合法时抛出 {@link IOException}，
+ * 文件被截断时抛出 {@link java.nio.BufferUnderflowException}</p>
+ */
+class AstReader {
+
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    private final ByteBuffer in;
+
+    /**
+     * 按编号排列的字符串
+     */
+    private final List<String> strings = new ArrayList<>();
+
+    /**
+     * 与 {@link #strings} 对应的符号编号，还没有作为标识符驻留过时为-1
+     */
+    private int[] symbols = new int[256];
+
+    AstReader(ByteBuffer in) {
+        this.in = in;
+    }
+
+    List<Stmt> read() throws IOException {
+        return readStmts();
+    }
+
+    private List<Stmt> readStmts() throws IOException {
+        int size = in.getInt();
+        List<Stmt> statements = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            statements.add(readStmt());
+        }
+        return statements;
+    }
+
+    private List<Stmt.Function> readFunctions() throws IOException {
+        int size = in.getInt();
+        List<Stmt.Function> functions = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            functions.add(cast(readStmt(), Stmt.Function.class));
+        }
+        return functions;
+    }
+
+    private Stmt readStmt() throws IOException {
+        byte tag = in.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case BLOCK: {
+                Stmt.Block block = new Stmt.Block(readStmts());
+                block.setMerged(in.get() != 0);
+                block.setScopeSize(in.getInt());
+                return block;
+            }
+            case CLASS: {
+                Stmt.Class klass = new Stmt.Class(readToken(), cast(readExpr(), Expr.Variable.class), readFunctions());
+                klass.setSlot(in.getInt());
+                return klass;
+            }
+            case EXPRESSION:
+                return new Stmt.Expression(readExpr());
+            case FOR: {
+                Stmt.For loop = new Stmt.For(readToken(), readStmt(), readExpr(), readExpr(), readStmt());
+                loop.setMerged(in.get() != 0);
+                loop.setScopeSize(in.getInt());
+                return loop;
+            }
+            case FUNCTION: {
+                Stmt.Function function = new Stmt.Function(readToken(), readTokens(), readStmts());
+                function.setSlot(in.getInt());
+                function.setScopeSize(in.getInt());
+                function.setFrameEscapes(in.get() != 0);
+                return function;
+            }
+            case IF:
+                return new Stmt.If(readExpr(), readStmt(), readStmt());
+            case PRINT:
+                return new Stmt.Print(readExpr());
+            case RETURN:
+                return new Stmt.Return(readToken(), readExpr());
+            case VAR: {
+                Stmt.Var declaration = new Stmt.Var(readToken(), readExpr());
+                declaration.setSlot(in.getInt());
+                return declaration;
+            }
+            case WHILE:
+                return new Stmt.While(readExpr(), readStmt());
+            default:
+                throw new IOException("Unknown statement tag " + tag + ".");
+        }
+    }
+
+    private List<Expr> readExprs() throws IOException {
+        int size = in.getInt();
+        List<Expr> exprs = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            exprs.add(readExpr());
+        }
+        return exprs;
+    }
+
+    private Expr readExpr() throws IOException {
+        byte tag = in.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case LITERAL:
+                return new Expr.Literal(readLiteral());
+            case LOGICAL:
+                return new Expr.Logical(readExpr(), readToken(), readExpr());
+            case SET:
+                return new Expr.Set(readExpr(), readToken(), readExpr());
+            case SUPER: {
+                Expr.Super expr = new Expr.Super(readToken(), readToken());
+                expr.setDepth(in.getInt());
+                return expr;
+            }
+            case THIS: {
+                Expr.This expr = new Expr.This(readToken());
+                expr.setDepth(in.getInt());
+                expr.setSlot(in.getInt());
+                return expr;
+            }
+            case UNARY:
+                return new Expr.Unary(readToken(), readExpr());
+            case ASSIGN: {
+                Expr.Assign expr = new Expr.Assign(readToken(), readExpr());
+                expr.setDepth(in.getInt());
+                expr.setSlot(in.getInt());
+                return expr;
+            }
+            case BINARY:
+                return new Expr.Binary(readExpr(), readToken(), readExpr());
+            case CALL:
+                return new Expr.Call(readExpr(), readToken(), readExprs());
+            case GET:
+                return new Expr.Get(readExpr(), readToken());
+            case GROUPING:
+                return new Expr.Grouping(readExpr());
+            case VARIABLE: {
+                Expr.Variable expr = new Expr.Variable(readToken());
+                expr.setDepth(in.getInt());
+                expr.setSlot(in.getInt());
+                return expr;
+            }
+            default:
+                throw new IOException("Unknown expression tag " + tag + ".");
+        }
+    }
+
+    private Object readLiteral() throws IOException {
+        byte type = in.get();
+        switch (type) {
+            case NIL:
+                return null;
+            case TRUE:
+                return true;
+            case FALSE:
+                return false;
+            case NUMBER:
+                return in.getDouble();
+            case STRING:
+                return readString();
+            default:
+                throw new IOException("Unknown literal type " + type + ".");
+        }
+    }
+
+    /**
+     * 标识符在这里重新驻留，符号编号与写出时的进程无关，同一个字符串只驻留一次
+     */
+    private Token readToken() throws IOException {
+        int type = in.get() & 0xFF;
+        if (type >= TOKEN_TYPES.length) throw new IOException("Unknown token type " + type + ".");
+        int index = readStringIndex();
+        String lexeme = strings.get(index);
+        if (TOKEN_TYPES[type] != TokenType.IDENTIFIER) {
+            return new Token(TOKEN_TYPES[type], lexeme, null, in.getInt(), 1);
+        }
+        if (symbols[index] < 0) symbols[index] = Symbols.intern(lexeme);
+        return new Token(TokenType.IDENTIFIER, Symbols.name(symbols[index]), null, in.getInt(), 1, symbols[index]);
+    }
+
+    private List<Token> readTokens() throws IOException {
+        int size = in.getInt();
+        List<Token> tokens = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            tokens.add(readToken());
+        }
+        return tokens;
+    }
+
+    private String readString() throws IOException {
+        return strings.get(readStringIndex());
+    }
+
+    /**
+     * 读取字符串编号，第一次出现的字符串紧跟着内容
+     */
+    private int readStringIndex() throws IOException {
+        int index = in.getInt();
+        if (index < strings.size()) return index;
+        if (index != strings.size()) throw new IOException("Bad string index " + index + ".");
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        strings.add(new String(bytes, StandardCharsets.UTF_8));
+        if (index == symbols.length) {
+            symbols = Arrays.copyOf(symbols, index * 2);
+        }
+        symbols[index] = -1;
+        return index;
+    }
+
+    private static <T> T cast(Object node, Class<T> type) throws IOException {
+        if (node != null && !type.isInstance(node)) {
+            throw new IOException("Expected " + type.getSimpleName() + " but found " + node.getClass().getSimpleName() + ".");
+        }
+        return type.cast(node);
+    }
+}
@@ -0,0 +1,343 @@
+package top.hzx.lox.cache;
+
+import top.hzx.lox.ast.Expr;
+import top.hzx.lox.ast.Stmt;
+import top.hzx.lox.token.Token;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static top.hzx.lox.cache.AstFormat.*;
+
+/**
+ * 把 Resolver 处理过的语法树写为二进制格式
+ * <p>除了语法结构，还写出 Resolver 计算的作用域距离、槽位和作用域大小，以及 Token 的行号，
+ * 读回的语法树不需要再运行 Resolver。运行时才填充的缓存（如内联缓存、调用计数）不写出</p>
+ */
+class AstWriter implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private final DataOutputStream out;
+
+    /**
+     * 已经写出的字符串及其编号
+     */
+    private final Map<String, Integer> strings = new HashMap<>();
+
+    AstWriter(DataOutputStream out) {
+        this.out = out;
+    }
+
+    void write(List<Stmt> statements) throws IOException {
+        try {
+            writeStmts(statements);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void writeStmts(List<? extends Stmt> statements) {
+        writeInt(statements.size());
+        for (Stmt statement : statements) {
+            statement.accept(this);
+        }
+    }
+
+    private void writeStmt(Stmt stmt) {
+        if (stmt == null) {
+            writeByte(NULL);
+        } else {
+            stmt.accept(this);
+        }
+    }
+
+    private void writeExpr(Expr expr) {
+        if (expr == null) {
+            writeByte(NULL);
+        } else {
+            expr.accept(this);
+        }
+    }
+
+    private void writeExprs(List<Expr> exprs) {
+        writeInt(exprs.size());
+        for (Expr expr : exprs) {
+            expr.accept(this);
+        }
+    }
+
+    private void writeToken(Token token) {
+        writeByte(token.getType().ordinal());
+        writeString(token.getLexeme());
+        writeInt(token.getLine());
+    }
+
+    private void writeTokens(List<Token> tokens) {
+        writeInt(tokens.size());
+        for (Token token : tokens) {
+            writeToken(token);
+        }
+    }
+
+    /**
+     * 第一次出现的字符串写出新编号和内容，之后只写编号
+     */
+    private void writeString(String string) {
+        Integer index = strings.get(string);
+        if (index != null) {
+            writeInt(index);
+            return;
+        }
+        writeInt(strings.size());
+        strings.put(string, strings.size());
+        // 不用 writeUTF，它限制长度不超过 64KB
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        try {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeByte(int value) {
+        try {
+            out.writeByte(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeInt(int value) {
+        try {
+            out.writeInt(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeDouble(double value) {
+        try {
+            out.writeDouble(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        writeByte(BLOCK);
+        writeStmts(stmt.getStatements());
+        writeByte(stmt.isMerged() ? 1 : 0);
+        writeInt(stmt.getScopeSize());
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        writeByte(CLASS);
+        writeToken(stmt.getName());
+        writeExpr(stmt.getSuperclass());
+        writeStmts(stmt.getMethods());
+        writeInt(stmt.getSlot());
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        writeByte(EXPRESSION);
+        writeExpr(stmt.getExpression());
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        writeByte(FOR);
+        writeToken(stmt.getKeyword());
+        writeStmt(stmt.getInitializer());
+        writeExpr(stmt.getCondition());
+        writeExpr(stmt.getIncrement());
+        writeStmt(stmt.getBody());
+        writeByte(stmt.isMerged() ? 1 : 0);
+        writeInt(stmt.getScopeSize());
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.getLazyBody() != null) {
+            // 缓存的语法树必须完整，使用缓存时不延迟解析函数体
+            throw new UncheckedIOException(new IOException("Function body of '" + stmt.getName().getLexeme() + "' is not parsed."));
+        }
+        writeByte(FUNCTION);
+        writeToken(stmt.getName());
+        writeTokens(stmt.getParams());
+        writeStmts(stmt.getBody());
+        writeInt(stmt.getSlot());
+        writeInt(stmt.getScopeSize());
+        writeByte(stmt.isFrameEscapes() ? 1 : 0);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        writeByte(IF);
+        writeExpr(stmt.getCondition());
+        writeStmt(stmt.getThenBranch());
+        writeStmt(stmt.getElseBranch());
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        writeByte(PRINT);
+        writeExpr(stmt.getExpression());
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        writeByte(RETURN);
+        writeToken(stmt.getKeyword());
+        writeExpr(stmt.getValue());
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        writeByte(VAR);
+        writeToken(stmt.getName());
+        writeExpr(stmt.getInitializer());
+        writeInt(stmt.getSlot());
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        writeByte(WHILE);
+        writeExpr(stmt.getCondition());
+        writeStmt(stmt.getBody());
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        writeByte(LITERAL);
+        Object value = expr.getValue();
+        if (value == null) {
+            writeByte(NIL);
+        } else if (value instanceof Boolean) {
+            writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Double) {
+            writeByte(NUMBER);
+            writeDouble((Double) value);
+        } else if (value instanceof String) {
+            writeByte(STRING);
+            writeString((String) value);
+        } else {
+            // 字面量只来自 Parser 和常量折叠，不会有其他类型，不能按 toString() 存下
+            throw new IllegalStateException("Unexpected literal type " + value.getClass().getName() + ".");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        writeByte(LOGICAL);
+        writeExpr(expr.getLeft());
+        writeToken(expr.getOperator());
+        writeExpr(expr.getRight());
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        writeByte(SET);
+        writeExpr(expr.getObject());
+        writeToken(expr.getName());
+        writeExpr(expr.getValue());
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        writeByte(SUPER);
+        writeToken(expr.getKeyword());
+        writeToken(expr.getMethod());
+        writeInt(expr.getDepth());
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        writeByte(THIS);
+        writeToken(expr.getKeyword());
+        writeInt(expr.getDepth());
+        writeInt(expr.getSlot());
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        writeByte(UNARY);
+        writeToken(expr.getOperator());
+        writeExpr(expr.getRight());
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        writeByte(ASSIGN);
+        writeToken(expr.getName());
+        writeExpr(expr.getValue());
+        writeInt(expr.getDepth());
+        writeInt(expr.getSlot());
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        writeByte(BINARY);
+        writeExpr(expr.getLeft());
+        writeToken(expr.getOperator());
+        writeExpr(expr.getRight());
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        writeByte(CALL);
+        writeExpr(expr.getCallee());
+        writeToken(expr.getParen());
+        writeExprs(expr.getArguments());
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        writeByte(GET);
+        writeExpr(expr.getObject());
+        writeToken(expr.getName());
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        writeByte(GROUPING);
+        writeExpr(expr.getExpression());
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        writeByte(VARIABLE);
+        writeToken(expr.getName());
+        writeInt(expr.getDepth());
+        writeInt(expr.getSlot());
+        return null;
+    }
+}
@@ -1,49 +1,102 @@
 package top.hzx.lox.env;
 
 import lombok.Getter;
-import top.hzx.lox.err.RuntimeError;
+import top.hzx.lox.symbol.Symbols;
 import top.hzx.lox.token.Token;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 @Getter
 public class Environment {
 
     private final Environment enclosing;
 
-    private final Map<String, Object> values = new HashMap<>();
+    /**
+     * 全局变量的存储单元，按名字的符号编号存储，用到时才创建（仅全局环境使用）
+     */
+    private GlobalCell[] cells;
+
+    /**
+     * 局部变量，按 Resolver 分配的槽位存储（仅局部环境使用）
+     */
+    private final Object[] slots;
 
     public Environment() {
         enclosing = null;
+        cells = new GlobalCell[Math.max(Symbols.count(), 16)];
+        slots = null;
     }
 
-    public Environment(Environment enclosing) {
+    public Environment(Environment enclosing, int size) {
         this.enclosing = enclosing;
+        this.cells = null;
+        this.slots = new Object[size];
     }
 
     public Object get(Token name) {
-        if (values.containsKey(name.getLexeme())) {
-            return values.get(name.getLexeme());
+        return cell(name.getSymbol()).get(name);
+    }
+
+    /**
+     * 取得全局变量的存储单元，同一个名字总是返回同一个单元
+     *
+     * @param symbol 变量名的符号编号
+     */
+    public GlobalCell cell(int symbol) {
+        if (symbol >= cells.length) {
+            cells = Arrays.copyOf(cells, Math.max(symbol + 1, cells.length * 2));
+        }
+        GlobalCell cell = cells[symbol];
+        if (cell == null) {
+            cell = new GlobalCell();
+            cells[symbol] = cell;
         }
-        if (enclosing != null) return enclosing.get(name);
-        throw new RuntimeError(name, "Undefined variable '" + name.getLexeme() + "'.");
+        return cell;
     }
 
+    /**
+     * 定义全局变量
+     *
+     * @param name  变量名
+     * @param value 变量值
+     */
     public void define(String name, Object value) {
-        values.put(name, value);
+        defineGlobal(Symbols.intern(name), value);
     }
 
-    public void assign(Token name, Object value) {
-        if (values.containsKey(name.getLexeme())) {
-            values.put(name.getLexeme(), value);
-            return;
-        }
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
+    public void define(Token name, Object value) {
+        defineGlobal(name.getSymbol(), value);
+    }
+
+    /**
+     * 定义变量，局部变量放在 Resolver 分配的槽位中
+     * <p>合并的块与外层共用环境，局部变量的槽位不一定按声明顺序排列</p>
+     *
+     * @param name  变量名
+     * @param slot  槽位，全局变量为 -1
+     * @param value 变量值
+     */
+    public void define(Token name, int slot, Object value) {
+        if (slot < 0) {
+            defineGlobal(name.getSymbol(), value);
+        } else {
+            slots[slot] = value;
         }
-        throw new RuntimeError(name, "Undefined variable '" + name.getLexeme() + "'.");
+    }
+
+    /**
+     * 直接写入局部环境的槽位，用于参数、this 和 super
+     */
+    public void defineAt(int slot, Object value) {
+        slots[slot] = value;
+    }
+
+    private void defineGlobal(int symbol, Object value) {
+        cell(symbol).define(value);
+    }
+
+    public void assign(Token name, Object value) {
+        cell(name.getSymbol()).assign(name, value);
     }
 
     private Environment ancestor(int distance) {
@@ -55,12 +108,12 @@ public class Environment {
         return environment;
     }
 
-    public Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    public Object getAt(int distance, int slot) {
+        return ancestor(distance).slots[slot];
     }
 
-    public void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.getLexeme(), value);
+    public void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
     }
 
 }
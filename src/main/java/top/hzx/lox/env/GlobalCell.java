@@ -0,0 +1,39 @@
+package top.hzx.lox.env;
+
+import top.hzx.lox.err.RuntimeError;
+import top.hzx.lox.token.Token;
+
+/**
+ * 一个全局变量的存储单元
+ * <p>每个名字的单元在第一次访问时创建，之后不会被替换。语法树节点第一次读写全局变量时缓存单元，
+ * 之后直接访问单元中的值，不再按名字查找。变量尚未定义时单元中是 {@link #UNDEFINED}，
+ * 读写时报告未定义，之后的定义直接写入同一个单元，因此仍然是运行时绑定</p>
+ */
+public final class GlobalCell {
+
+    /**
+     * 尚未定义的全局变量
+     */
+    private static final Object UNDEFINED = new Object();
+
+    private Object value = UNDEFINED;
+
+    public Object get(Token name) {
+        Object value = this.value;
+        if (value == UNDEFINED) throw undefined(name);
+        return value;
+    }
+
+    public void assign(Token name, Object value) {
+        if (this.value == UNDEFINED) throw undefined(name);
+        this.value = value;
+    }
+
+    void define(Object value) {
+        this.value = value;
+    }
+
+    private static RuntimeError undefined(Token name) {
+        return new RuntimeError(name, "Undefined variable '" + name.getLexeme() + "'.");
+    }
+}
@@ -8,9 +8,27 @@ public class RuntimeError extends RuntimeException {
 
     private final Token token;
 
+    /**
+     * 出错的行号
+     */
+    private final int line;
+
     public RuntimeError(Token token, String message) {
         super(message);
         this.token = token;
+        this.line = token.getLine();
+    }
+
+    /**
+     * 字节码虚拟机只保留了行号信息，没有对应的 Token
+     *
+     * @param line    行号
+     * @param message 错误信息
+     */
+    public RuntimeError(int line, String message) {
+        super(message);
+        this.token = null;
+        this.line = line;
     }
 
 }
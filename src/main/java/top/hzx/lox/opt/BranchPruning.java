@@ -0,0 +1,55 @@
+package top.hzx.lox.opt;
+
+import top.hzx.lox.ast.Expr;
+import top.hzx.lox.ast.Interpreter;
+import top.hzx.lox.ast.Stmt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * 分支裁剪
+ * <p>条件为常量的 if 只保留会执行的分支，条件为假的 while 整个删除，条件为假的 for 只保留初始化部分</p>
+ */
+public class BranchPruning extends Pass {
+
+    @Override
+    public String getName() {
+        return "branch-pruning";
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Stmt.If result = (Stmt.If) super.visitIfStmt(stmt);
+        if (!(result.getCondition() instanceof Expr.Literal)) return result;
+        changed();
+        if (Interpreter.isTruthy(((Expr.Literal) result.getCondition()).getValue())) {
+            return result.getThenBranch();
+        }
+        return result.getElseBranch();
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Stmt.While result = (Stmt.While) super.visitWhileStmt(stmt);
+        if (result.getCondition() instanceof Expr.Literal
+                && !Interpreter.isTruthy(((Expr.Literal) result.getCondition()).getValue())) {
+            changed();
+            return null;
+        }
+        return result;
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        Stmt.For result = (Stmt.For) super.visitForStmt(stmt);
+        if (result.getCondition() instanceof Expr.Literal
+                && !Interpreter.isTruthy(((Expr.Literal) result.getCondition()).getValue())) {
+            changed();
+            if (result.getInitializer() == null) return null;
+            // 初始化部分仍然执行一次，保留在块中，变量不会泄漏到外层作用域
+            return new Stmt.Block(new ArrayList<>(Collections.singletonList(result.getInitializer())));
+        }
+        return result;
+    }
+}
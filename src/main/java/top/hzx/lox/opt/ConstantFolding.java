@@ -0,0 +1,116 @@
+package top.hzx.lox.opt;
+
+import top.hzx.lox.ast.Expr;
+import top.hzx.lox.ast.Interpreter;
+import top.hzx.lox.token.TokenType;
+
+/**
+ * 常量折叠
+ * <p>操作数都是字面量的运算在编译时求值。运行时会报错的运算（如数字加字符串）保持原样，错误仍在运行时报告</p>
+ */
+public class ConstantFolding extends Pass {
+
+    /**
+     * 无法折叠
+     */
+    private static final Object UNKNOWN = new Object();
+
+    @Override
+    public String getName() {
+        return "constant-folding";
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr result = super.visitGroupingExpr(expr);
+        Expr expression = ((Expr.Grouping) result).getExpression();
+        if (expression instanceof Expr.Literal) {
+            changed();
+            return expression;
+        }
+        return result;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr.Unary result = (Expr.Unary) super.visitUnaryExpr(expr);
+        if (!(result.getRight() instanceof Expr.Literal)) return result;
+        Object right = ((Expr.Literal) result.getRight()).getValue();
+        if (result.getOperator().getType() == TokenType.BANG) {
+            changed();
+            return new Expr.Literal(!Interpreter.isTruthy(right));
+        }
+        if (right instanceof Double) {
+            changed();
+            return new Expr.Literal(-(double) right);
+        }
+        return result;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr.Binary result = (Expr.Binary) super.visitBinaryExpr(expr);
+        if (!(result.getLeft() instanceof Expr.Literal) || !(result.getRight() instanceof Expr.Literal)) {
+            return result;
+        }
+        Object value = fold(result.getOperator().getType(),
+                ((Expr.Literal) result.getLeft()).getValue(), ((Expr.Literal) result.getRight()).getValue());
+        if (value == UNKNOWN) return result;
+        changed();
+        return new Expr.Literal(value);
+    }
+
+    private static Object fold(TokenType operator, Object left, Object right) {
+        switch (operator) {
+            case EQUAL_EQUAL:
+                return isEqual(left, right);
+            case BANG_EQUAL:
+                return !isEqual(left, right);
+            case PLUS:
+                if (left instanceof String && right instanceof String) {
+                    return left + (String) right;
+                }
+                break;
+        }
+        if (!(left instanceof Double) || !(right instanceof Double)) return UNKNOWN;
+        double l = (double) left;
+        double r = (double) right;
+        switch (operator) {
+            case PLUS:
+                return l + r;
+            case MINUS:
+                return l - r;
+            case STAR:
+                return l * r;
+            case SLASH:
+                return l / r;
+            case GREATER:
+                return l > r;
+            case GREATER_EQUAL:
+                return l >= r;
+            case LESS:
+                return l < r;
+            case LESS_EQUAL:
+                return l <= r;
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    private static boolean isEqual(Object left, Object right) {
+        if (left == null && right == null) return true;
+        if (left == null) return false;
+        return left.equals(right);
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr.Logical result = (Expr.Logical) super.visitLogicalExpr(expr);
+        if (!(result.getLeft() instanceof Expr.Literal)) return result;
+        // 左操作数是常量时，结果要么就是左操作数，要么就是右操作数
+        boolean truthy = Interpreter.isTruthy(((Expr.Literal) result.getLeft()).getValue());
+        boolean isOr = result.getOperator().getType() == TokenType.OR;
+        changed();
+        return truthy == isOr ? result.getLeft() : result.getRight();
+    }
+}
@@ -0,0 +1,269 @@
+package top.hzx.lox.opt;
+
+import top.hzx.lox.ast.Expr;
+import top.hzx.lox.ast.Stmt;
+import top.hzx.lox.token.Token;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+/**
+ * 常量传播
+ * <p>初始值为字面量且从未被赋值的局部变量，读取处直接替换为字面量，声明随之删除。
+ * 全局变量可能在其他脚本或后续输入中被重新定义，不做处理</p>
+ */
+public class ConstantPropagation extends Pass {
+
+    /**
+     * 局部变量的一次声明
+     */
+    private static class Binding {
+        /**
+         * 初始值，不是字面量时为null
+         */
+        private final Expr.Literal value;
+        /**
+         * 是否在某处被赋值
+         */
+        private boolean assigned = false;
+
+        private Binding(Expr.Literal value) {
+            this.value = value;
+        }
+
+        private boolean isConstant() {
+            return value != null && !assigned;
+        }
+    }
+
+    private final Map<Expr.Variable, Binding> reads = new IdentityHashMap<>();
+
+    private final Map<Stmt.Var, Binding> declarations = new IdentityHashMap<>();
+
+    @Override
+    public String getName() {
+        return "constant-propagation";
+    }
+
+    @Override
+    public List<Stmt> run(List<Stmt> statements) {
+        reads.clear();
+        declarations.clear();
+        new Analyzer().analyze(statements);
+        return super.run(statements);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        Binding binding = reads.get(expr);
+        if (binding == null || !binding.isConstant()) return expr;
+        changed();
+        return new Expr.Literal(binding.value.getValue());
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Binding binding = declarations.get(stmt);
+        if (binding == null || !binding.isConstant()) return super.visitVarStmt(stmt);
+        changed();
+        return null;
+    }
+
+    /**
+     * 按照 Resolver 的作用域规则找出每次读取对应的声明
+     */
+    private class Analyzer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+        private final Stack<Map<String, Binding>> scopes = new Stack<>();
+
+        private void analyze(List<Stmt> statements) {
+            for (Stmt statement : statements) {
+                statement.accept(this);
+            }
+        }
+
+        private void analyze(Expr expr) {
+            if (expr != null) expr.accept(this);
+        }
+
+        private Binding declare(Token name, Expr.Literal value) {
+            Binding binding = new Binding(value);
+            if (!scopes.isEmpty()) scopes.peek().put(name.getLexeme(), binding);
+            return binding;
+        }
+
+        private Binding lookUp(Token name) {
+            for (int i = scopes.size() - 1; i >= 0; i--) {
+                Binding binding = scopes.get(i).get(name.getLexeme());
+                if (binding != null) return binding;
+            }
+            return null;
+        }
+
+        private void analyzeFunction(Stmt.Function function) {
+            scopes.push(new HashMap<>());
+            for (Token param : function.getParams()) {
+                declare(param, null);
+            }
+            analyze(function.getBody());
+            scopes.pop();
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            scopes.push(new HashMap<>());
+            analyze(stmt.getStatements());
+            scopes.pop();
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            declare(stmt.getName(), null);
+            if (stmt.getSuperclass() != null) {
+                // 父类表达式不会被替换，但仍然需要记录读取，防止误删它引用的声明
+                Binding binding = lookUp(stmt.getSuperclass().getName());
+                if (binding != null) binding.assigned = true;
+            }
+            for (Stmt.Function method : stmt.getMethods()) {
+                analyzeFunction(method);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            analyze(stmt.getExpression());
+            return null;
+        }
+
+        @Override
+        public Void visitForStmt(Stmt.For stmt) {
+            scopes.push(new HashMap<>());
+            if (stmt.getInitializer() != null) stmt.getInitializer().accept(this);
+            analyze(stmt.getCondition());
+            analyze(stmt.getIncrement());
+            stmt.getBody().accept(this);
+            scopes.pop();
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            declare(stmt.getName(), null);
+            analyzeFunction(stmt);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            analyze(stmt.getCondition());
+            stmt.getThenBranch().accept(this);
+            if (stmt.getElseBranch() != null) stmt.getElseBranch().accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            analyze(stmt.getExpression());
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            analyze(stmt.getValue());
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            analyze(stmt.getInitializer());
+            if (scopes.isEmpty()) return null;
+            Expr initializer = stmt.getInitializer();
+            Expr.Literal value;
+            if (initializer == null) {
+                value = new Expr.Literal(null);
+            } else if (initializer instanceof Expr.Literal) {
+                value = (Expr.Literal) initializer;
+            } else {
+                value = null;
+            }
+            declarations.put(stmt, declare(stmt.getName(), value));
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            analyze(stmt.getCondition());
+            stmt.getBody().accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            analyze(expr.getValue());
+            Binding binding = lookUp(expr.getName());
+            if (binding != null) binding.assigned = true;
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            analyze(expr.getLeft());
+            analyze(expr.getRight());
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            analyze(expr.getCallee());
+            for (Expr argument : expr.getArguments()) {
+                analyze(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            analyze(expr.getObject());
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            analyze(expr.getExpression());
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            analyze(expr.getLeft());
+            analyze(expr.getRight());
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            analyze(expr.getValue());
+            analyze(expr.getObject());
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            analyze(expr.getRight());
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            Binding binding = lookUp(expr.getName());
+            if (binding != null) reads.put(expr, binding);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package top.hzx.lox.opt;
+
+import top.hzx.lox.ast.Expr;
+import top.hzx.lox.ast.Stmt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 删除不会执行或没有效果的语句
+ * <ul>
+ *     <li>同一语句列表中 return 之后的语句</li>
+ *     <li>只有字面量的表达式语句</li>
+ *     <li>空代码块</li>
+ * </ul>
+ */
+public class DeadCodeElimination extends Pass {
+
+    @Override
+    public String getName() {
+        return "dead-code";
+    }
+
+    @Override
+    protected List<Stmt> rewriteAll(List<Stmt> statements) {
+        List<Stmt> rewritten = super.rewriteAll(statements);
+        List<Stmt> result = new ArrayList<>(rewritten.size());
+        for (int i = 0; i < rewritten.size(); i++) {
+            Stmt statement = rewritten.get(i);
+            if (isUseless(statement)) {
+                changed();
+                continue;
+            }
+            result.add(statement);
+            if (statement instanceof Stmt.Return) {
+                // 同一列表中 return 之后的语句永远不会执行
+                for (int j = i + 1; j < rewritten.size(); j++) {
+                    changed();
+                }
+                break;
+            }
+        }
+        return result.size() == rewritten.size() ? rewritten : result;
+    }
+
+    private static boolean isUseless(Stmt statement) {
+        if (statement instanceof Stmt.Block) {
+            return ((Stmt.Block) statement).getStatements().isEmpty();
+        }
+        if (statement instanceof Stmt.Expression) {
+            return ((Stmt.Expression) statement).getExpression() instanceof Expr.Literal;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,56 @@
+package top.hzx.lox.opt;
+
+import top.hzx.lox.ast.Stmt;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 在 Resolver 和执行之间对语法树做的优化
+ * <ul>
+ *     <li>0：不优化</li>
+ *     <li>1：常量折叠、分支裁剪、删除无用代码</li>
+ *     <li>2：在 1 的基础上加入局部变量的常量传播，传播后再折叠一次</li>
+ * </ul>
+ * 优化会替换语法树节点，执行前需要重新运行 Resolver
+ */
+public class Optimizer {
+
+    public static final int MAX_LEVEL = 2;
+
+    private final int level;
+
+    private final List<Pass> passes;
+
+    public Optimizer(int level) {
+        this.level = level;
+        if (level <= 0) {
+            passes = new ArrayList<>();
+        } else if (level == 1) {
+            passes = Arrays.asList(new ConstantFolding(), new BranchPruning(), new DeadCodeElimination());
+        } else {
+            passes = Arrays.asList(new ConstantFolding(), new ConstantPropagation(), new ConstantFolding(),
+                    new BranchPruning(), new DeadCodeElimination());
+        }
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public List<Stmt> optimize(List<Stmt> statements) {
+        for (Pass pass : passes) {
+            statements = pass.run(statements);
+        }
+        return statements;
+    }
+
+    public void report(PrintStream out) {
+        out.println("== optimizer stats ==");
+        for (Pass pass : passes) {
+            out.printf("%-22s %d%n", pass.getName(), pass.getChanges());
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package top.hzx.lox.opt;
+
+import top.hzx.lox.ast.Expr;
+import top.hzx.lox.ast.Stmt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 优化遍
+ * <p>默认实现递归改写所有子节点，子节点都没有变化时返回原节点，否则创建新节点。
+ * 语句改写为null表示删除该语句。改写后的语法树由 Resolver 重新计算变量位置</p>
+ */
+public abstract class Pass implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    /**
+     * 本遍累计改写的次数
+     */
+    private int changes = 0;
+
+    /**
+     * @return 名称，用于输出统计
+     */
+    public abstract String getName();
+
+    public int getChanges() {
+        return changes;
+    }
+
+    protected void changed() {
+        changes++;
+    }
+
+    public List<Stmt> run(List<Stmt> statements) {
+        return rewriteAll(statements);
+    }
+
+    /**
+     * 改写语句列表，删除改写为null的语句
+     *
+     * @return 没有任何变化时返回原列表
+     */
+    protected List<Stmt> rewriteAll(List<Stmt> statements) {
+        List<Stmt> result = new ArrayList<>(statements.size());
+        boolean modified = false;
+        for (Stmt statement : statements) {
+            Stmt rewritten = rewrite(statement);
+            if (rewritten != null) result.add(rewritten);
+            modified |= rewritten != statement;
+        }
+        return modified ? result : statements;
+    }
+
+    protected Stmt rewrite(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    /**
+     * 改写循环体、分支等只能放一条语句的位置，语句被删除时用空代码块代替
+     */
+    protected Stmt rewriteBody(Stmt stmt) {
+        Stmt rewritten = rewrite(stmt);
+        return rewritten == null ? new Stmt.Block(new ArrayList<>()) : rewritten;
+    }
+
+    protected Expr rewrite(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    private List<Expr> rewriteExprs(List<Expr> exprs) {
+        List<Expr> result = new ArrayList<>(exprs.size());
+        boolean modified = false;
+        for (Expr expr : exprs) {
+            Expr rewritten = rewrite(expr);
+            result.add(rewritten);
+            modified |= rewritten != expr;
+        }
+        return modified ? result : exprs;
+    }
+
+    protected Stmt.Function rewriteFunction(Stmt.Function stmt) {
+        List<Stmt> body = rewriteAll(stmt.getBody());
+        if (body == stmt.getBody()) return stmt;
+        return new Stmt.Function(stmt.getName(), stmt.getParams(), body);
+    }
+
+    // ---------------------------------------------------------------- 表达式
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = rewrite(expr.getValue());
+        if (value == expr.getValue()) return expr;
+        return new Expr.Assign(expr.getName(), value);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = rewrite(expr.getLeft());
+        Expr right = rewrite(expr.getRight());
+        if (left == expr.getLeft() && right == expr.getRight()) return expr;
+        return new Expr.Binary(left, expr.getOperator(), right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = rewrite(expr.getCallee());
+        List<Expr> arguments = rewriteExprs(expr.getArguments());
+        if (callee == expr.getCallee() && arguments == expr.getArguments()) return expr;
+        return new Expr.Call(callee, expr.getParen(), arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = rewrite(expr.getObject());
+        if (object == expr.getObject()) return expr;
+        return new Expr.Get(object, expr.getName());
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = rewrite(expr.getExpression());
+        if (expression == expr.getExpression()) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = rewrite(expr.getLeft());
+        Expr right = rewrite(expr.getRight());
+        if (left == expr.getLeft() && right == expr.getRight()) return expr;
+        return new Expr.Logical(left, expr.getOperator(), right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = rewrite(expr.getObject());
+        Expr value = rewrite(expr.getValue());
+        if (object == expr.getObject() && value == expr.getValue()) return expr;
+        return new Expr.Set(object, expr.getName(), value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.getRight());
+        if (right == expr.getRight()) return expr;
+        return new Expr.Unary(expr.getOperator(), right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    // ---------------------------------------------------------------- 语句
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = rewriteAll(stmt.getStatements());
+        if (statements == stmt.getStatements()) return stmt;
+        return new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = new ArrayList<>(stmt.getMethods().size());
+        boolean modified = false;
+        for (Stmt.Function method : stmt.getMethods()) {
+            Stmt.Function rewritten = rewriteFunction(method);
+            methods.add(rewritten);
+            modified |= rewritten != method;
+        }
+        // 父类表达式必须保持为变量，不参与改写
+        if (!modified) return stmt;
+        return new Stmt.Class(stmt.getName(), stmt.getSuperclass(), methods);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.getExpression());
+        if (expression == stmt.getExpression()) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        Stmt initializer = stmt.getInitializer() == null ? null : rewrite(stmt.getInitializer());
+        Expr condition = rewrite(stmt.getCondition());
+        Expr increment = rewrite(stmt.getIncrement());
+        Stmt body = rewriteBody(stmt.getBody());
+        if (initializer == stmt.getInitializer() && condition == stmt.getCondition()
+                && increment == stmt.getIncrement() && body == stmt.getBody()) {
+            return stmt;
+        }
+        return new Stmt.For(stmt.getKeyword(), initializer, condition, increment, body);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        return rewriteFunction(stmt);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.getCondition());
+        Stmt thenBranch = rewriteBody(stmt.getThenBranch());
+        Stmt elseBranch = stmt.getElseBranch() == null ? null : rewriteBody(stmt.getElseBranch());
+        if (condition == stmt.getCondition() && thenBranch == stmt.getThenBranch() && elseBranch == stmt.getElseBranch()) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = rewrite(stmt.getExpression());
+        if (expression == stmt.getExpression()) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        Expr value = rewrite(stmt.getValue());
+        if (value == stmt.getValue()) return stmt;
+        return new Stmt.Return(stmt.getKeyword(), value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = rewrite(stmt.getInitializer());
+        if (initializer == stmt.getInitializer()) return stmt;
+        return new Stmt.Var(stmt.getName(), initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.getCondition());
+        Stmt body = rewriteBody(stmt.getBody());
+        if (condition == stmt.getCondition() && body == stmt.getBody()) return stmt;
+        return new Stmt.While(condition, body);
+    }
+}
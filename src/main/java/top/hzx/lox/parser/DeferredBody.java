@@ -0,0 +1,31 @@
+package top.hzx.lox.parser;
+
+import top.hzx.lox.ast.LazyBody;
+import top.hzx.lox.ast.Stmt;
+import top.hzx.lox.token.TokenBuffer;
+import top.hzx.lox.token.TokenType;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 预解析时记下的函数体 Token，从 '{' 之后到匹配的 '}' 为止
+ * <p>Token 按批保存，文本与扫描时的批共用同一个字符数组，比解析出的语法树小得多</p>
+ */
+class DeferredBody extends LazyBody {
+
+    private final List<TokenBuffer> tokens;
+
+    DeferredBody(List<TokenBuffer> tokens) {
+        this.tokens = tokens;
+    }
+
+    @Override
+    protected List<Stmt> parse() {
+        TokenBuffer last = tokens.get(tokens.size() - 1);
+        TokenBuffer eof = new TokenBuffer(null, 1);
+        eof.add(TokenType.EOF, 0, 0, last.line(last.size() - 1));
+        Iterator<TokenBuffer> batches = tokens.iterator();
+        return new Parser(() -> batches.hasNext() ? batches.next() : eof).functionBody();
+    }
+}
@@ -1,7 +1,8 @@
 package top.hzx.lox.parser;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 
 import top.hzx.lox.Lox;
@@ -9,16 +10,63 @@ import top.hzx.lox.ast.Expr;
 import top.hzx.lox.ast.Stmt;
 import top.hzx.lox.err.ParseError;
 import top.hzx.lox.token.Token;
+import top.hzx.lox.token.TokenBuffer;
+import top.hzx.lox.token.TokenSource;
 import top.hzx.lox.token.TokenType;
 
 public class Parser {
 
-    private final List<Token> tokens;
+    /**
+     * Token 按批从 TokenSource 读取，只需要保留当前和上一个 Token 所在的批。
+     * 语法判断只看类型，Token 对象在放进语法树或报告错误时才创建
+     */
+    private final TokenSource tokens;
 
-    private int current = 0;
+    private TokenBuffer batch;
 
-    public Parser(List<Token> tokens) {
+    private int index;
+
+    private TokenBuffer previousBatch;
+
+    private int previousIndex;
+
+    /**
+     * 已经创建的上一个 Token 对象
+     */
+    private Token previous;
+
+    /**
+     * 全局作用域中的函数是否只预解析函数体
+     */
+    private final boolean deferBodies;
+
+    /**
+     * 当前所在代码块的嵌套层数，0 表示全局作用域
+     */
+    private int depth = 0;
+
+    /**
+     * 是否报告过语法错误
+     */
+    private boolean hadError = false;
+
+    public Parser(TokenSource tokens) {
+        this(tokens, false);
+    }
+
+    /**
+     * @param tokens      Token 来源
+     * @param deferBodies 为 true 时全局作用域中的函数和方法只做括号匹配，第一次调用时才解析函数体
+     */
+    public Parser(TokenSource tokens, boolean deferBodies) {
         this.tokens = tokens;
+        this.deferBodies = deferBodies;
+        this.batch = tokens.nextBatch();
+        this.index = 0;
+    }
+
+    public Parser(List<Token> tokens) {
+        this(() -> TokenBuffer.of(tokens));
     }
 
     public List<Stmt> parse() {
@@ -32,7 +80,7 @@ public class Parser {
     private Stmt declaration() {
         try {
             if (match(TokenType.CLASS)) return classDeclaration();
-            if (match(TokenType.FUN)) return function("function");
+            if (match(TokenType.FUN)) return function("function", false);
             if (match(TokenType.VAR)) return varDeclaration();
             return statement();
         } catch (ParseError error) {
@@ -45,25 +93,28 @@ public class Parser {
         Token name = consume(TokenType.IDENTIFIER, "Expect class name.");
         Expr.Variable superclass = null;
         if (match(TokenType.LESS)) {
-            consume(TokenType.IDENTIFIER, "Expect superclass name.");
+            expect(TokenType.IDENTIFIER, "Expect superclass name.");
             superclass = new Expr.Variable(previous());
         }
-        consume(TokenType.LEFT_BRACE, "Expect '{' before class body.");
+        expect(TokenType.LEFT_BRACE, "Expect '{' before class body.");
 
         List<Stmt.Function> methods = new ArrayList<>();
         while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
-            methods.add(function("method"));
+            methods.add(function("method", superclass != null));
         }
 
-        consume(TokenType.RIGHT_BRACE, "Expect '}' after class body.");
+        expect(TokenType.RIGHT_BRACE, "Expect '}' after class body.");
 
         return new Stmt.Class(name, superclass, methods);
     }
 
+    /**
+     * @param hasSuperclass 方法所在的类是否有父类，函数为 false
+     */
     @SuppressWarnings("all")
-    private Stmt.Function function(String kind) {
+    private Stmt.Function function(String kind, boolean hasSuperclass) {
         Token name = consume(TokenType.IDENTIFIER, "Expect " + kind + " name.");
-        consume(TokenType.LEFT_PAREN, "Expect '(' after function name.");
+        expect(TokenType.LEFT_PAREN, "Expect '(' after function name.");
         List<Token> parameters = new ArrayList<>();
         if (!check(TokenType.RIGHT_PAREN)) {
             do {
@@ -74,19 +125,127 @@ public class Parser {
             } while (match(TokenType.COMMA));
 
         }
-        consume(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
-        consume(TokenType.LEFT_BRACE, String.format("Expect '{' before %s body.", kind));
+        expect(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
+        expect(TokenType.LEFT_BRACE, String.format("Expect '{' before %s body.", kind));
+        if (deferBodies && depth == 0) {
+            Stmt.Function function = new Stmt.Function(name, parameters, new ArrayList<>());
+            function.setLazyBody(skipBody(kind.equals("method"), hasSuperclass));
+            return function;
+        }
         List<Stmt> body = block();
         return new Stmt.Function(name, parameters, body);
     }
 
+    /**
+     * 只做括号匹配，跳过函数体并记下其中的 Token
+     * <p>同时报告只看相邻 Token 就能确定的错误：var、fun、class 和 '.' 之后不是名字，super 之后不是 '.'，
+     * 以及类之外的 this 和 super，报告的位置和描述与完整解析时相同。其余的错误在第一次调用时报告</p>
+     *
+     * @param method        是否为方法的函数体
+     * @param hasSuperclass 方法所在的类是否有父类
+     * @return 从 '{' 之后到匹配的 '}' 为止的 Token
+     */
+    private DeferredBody skipBody(boolean method, boolean hasSuperclass) {
+        List<TokenBuffer> slices = new ArrayList<>();
+        TokenBuffer sliceBatch = batch;
+        int from = index;
+        int nesting = 1;
+        // 所在的类：类体所在的括号层数，以及是否有父类。方法所在的类在第 0 层，不会出栈
+        Deque<int[]> classes = new ArrayDeque<>();
+        if (method) classes.push(new int[]{0, hasSuperclass ? 1 : 0});
+        boolean classHeader = false;
+        boolean classHasSuper = false;
+        TokenType previousType = TokenType.LEFT_BRACE;
+        while (true) {
+            if (isAtEnd()) throw error(peek(), "Expect '}' after block.");
+            TokenType type = peekType();
+            checkSkipped(previousType, type, classes.peek());
+            if (type == TokenType.CLASS) {
+                classHeader = true;
+                classHasSuper = false;
+            } else if (type == TokenType.LESS && classHeader) {
+                classHasSuper = true;
+            } else if (type == TokenType.LEFT_BRACE) {
+                nesting++;
+                if (classHeader) classes.push(new int[]{nesting, classHasSuper ? 1 : 0});
+                classHeader = false;
+            } else if (type == TokenType.RIGHT_BRACE) {
+                if (!classes.isEmpty() && classes.peek()[0] == nesting) classes.pop();
+                if (--nesting == 0) {
+                    slices.add(sliceBatch.slice(from, index + 1));
+                    advance();
+                    return new DeferredBody(slices);
+                }
+            }
+            previousType = type;
+            advance();
+            if (batch != sliceBatch) {
+                slices.add(sliceBatch.slice(from, sliceBatch.size()));
+                sliceBatch = batch;
+                from = 0;
+            }
+        }
+    }
+
+    /**
+     * 检查跳过的函数体中的当前 Token，出错时只报告，继续括号匹配
+     *
+     * @param previous 前一个 Token 的类型
+     * @param type     当前 Token 的类型
+     * @param klass    当前所在的类，不在类中时为null
+     */
+    private void checkSkipped(TokenType previous, TokenType type, int[] klass) {
+        if (type != TokenType.IDENTIFIER) {
+            switch (previous) {
+                case VAR:
+                    error(peek(), "Expect variable name.");
+                    break;
+                case FUN:
+                    error(peek(), "Expect function name.");
+                    break;
+                case CLASS:
+                    error(peek(), "Expect class name.");
+                    break;
+                case DOT:
+                    error(peek(), "Expect property name after '.'.");
+                    break;
+            }
+        }
+        if (previous == TokenType.SUPER && type != TokenType.DOT) {
+            error(peek(), "Expect '.' after 'super'.");
+        }
+        if (type == TokenType.THIS && klass == null) {
+            error(peek(), "Can't use 'this' outside of a class.");
+        } else if (type == TokenType.SUPER) {
+            if (klass == null) {
+                error(peek(), "Can't use 'super' outside of a class.");
+            } else if (klass[1] == 0) {
+                error(peek(), "Can't use 'super' in a class with no superclass.");
+            }
+        }
+    }
+
+    /**
+     * 解析延迟的函数体，Token 从 '{' 之后开始，到匹配的 '}' 结束
+     *
+     * @return 函数体的语句，有语法错误时返回null
+     */
+    List<Stmt> functionBody() {
+        try {
+            List<Stmt> body = block();
+            return hadError ? null : body;
+        } catch (ParseError error) {
+            return null;
+        }
+    }
+
     private Stmt varDeclaration() {
         Token name = consume(TokenType.IDENTIFIER, "Expect variable name.");
         Expr initializer = null;
         if (match(TokenType.EQUAL)) {
             initializer = expression();
         }
-        consume(TokenType.SEMICOLON, "Expect ';' after variable declaration.");
+        expect(TokenType.SEMICOLON, "Expect ';' after variable declaration.");
         return new Stmt.Var(name, initializer);
     }
 
@@ -101,7 +260,8 @@ public class Parser {
     }
 
     private Stmt forStatement() {
-        consume(TokenType.LEFT_PAREN, "Expect '(' after 'for'.");
+        Token keyword = previous();
+        expect(TokenType.LEFT_PAREN, "Expect '(' after 'for'.");
         Stmt initializer;
         if (match(TokenType.SEMICOLON)) {
             initializer = null;
@@ -114,31 +274,21 @@ public class Parser {
         if (!check(TokenType.SEMICOLON)) {
             condition = expression();
         }
-        consume(TokenType.SEMICOLON, "Expect ';' after loop condition.");
+        expect(TokenType.SEMICOLON, "Expect ';' after loop condition.");
         Expr increment = null;
         if (!check(TokenType.RIGHT_PAREN)) {
             increment = expression();
         }
-        consume(TokenType.RIGHT_PAREN, "Expect ')' after for clauses.");
+        expect(TokenType.RIGHT_PAREN, "Expect ')' after for clauses.");
 
         Stmt body = statement();
-        if (increment != null) {
-            body = new Stmt.Block(Arrays.asList(body, new Stmt.Expression(increment)));
-        }
-        if (condition == null) {
-            condition = new Expr.Literal(true);
-        }
-        body = new Stmt.While(condition, body);
-        if (initializer != null) {
-            body = new Stmt.Block(Arrays.asList(initializer, body));
-        }
-        return body;
+        return new Stmt.For(keyword, initializer, condition, increment, body);
     }
 
     private Stmt ifStatement() {
-        consume(TokenType.LEFT_PAREN, "Expect '(' after 'if'.");
+        expect(TokenType.LEFT_PAREN, "Expect '(' after 'if'.");
         Expr condition = expression();
-        consume(TokenType.RIGHT_PAREN, "Expect ')' after condition.");
+        expect(TokenType.RIGHT_PAREN, "Expect ')' after condition.");
 
         Stmt thenBranch = statement();
         Stmt elseBranch = null;
@@ -149,7 +299,7 @@ public class Parser {
 
     private Stmt printStatement() {
         Expr value = expression();
-        consume(TokenType.SEMICOLON, "Expect ';' after value.");
+        expect(TokenType.SEMICOLON, "Expect ';' after value.");
         return new Stmt.Print(value);
     }
 
@@ -159,30 +309,35 @@ public class Parser {
         if (!check(TokenType.SEMICOLON)) {
             value = expression();
         }
-        consume(TokenType.SEMICOLON, "Expect ';' after return value.");
+        expect(TokenType.SEMICOLON, "Expect ';' after return value.");
         return new Stmt.Return(keyword, value);
     }
 
     private Stmt whileStatement() {
-        consume(TokenType.LEFT_PAREN, "Expect '(' after 'while'.");
+        expect(TokenType.LEFT_PAREN, "Expect '(' after 'while'.");
         Expr condition = expression();
-        consume(TokenType.RIGHT_PAREN, "Expect ')' after condition.");
+        expect(TokenType.RIGHT_PAREN, "Expect ')' after condition.");
         Stmt body = statement();
         return new Stmt.While(condition, body);
     }
 
     private List<Stmt> block() {
         List<Stmt> statements = new ArrayList<>();
-        while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
-            statements.add(declaration());
+        depth++;
+        try {
+            while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+                statements.add(declaration());
+            }
+        } finally {
+            depth--;
         }
-        consume(TokenType.RIGHT_BRACE, "Expect '}' after block.");
+        expect(TokenType.RIGHT_BRACE, "Expect '}' after block.");
         return statements;
     }
 
     private Stmt expressionStatement() {
         Expr expr = expression();
-        consume(TokenType.SEMICOLON, "Expect ';' after expression.");
+        expect(TokenType.SEMICOLON, "Expect ';' after expression.");
         return new Stmt.Expression(expr);
     }
 
@@ -311,10 +466,10 @@ public class Parser {
         if (match(TokenType.FALSE)) return new Expr.Literal(false);
         if (match(TokenType.TRUE)) return new Expr.Literal(true);
         if (match(TokenType.NIL)) return new Expr.Literal(null);
-        if (match(TokenType.NUMBER, TokenType.STRING)) return new Expr.Literal(previous().getLiteral());
+        if (match(TokenType.NUMBER, TokenType.STRING)) return new Expr.Literal(previousBatch.literal(previousIndex));
         if (match(TokenType.SUPER)) {
             Token keyword = previous();
-            consume(TokenType.DOT, "Expect '.' after 'super'.");
+            expect(TokenType.DOT, "Expect '.' after 'super'.");
             Token method = consume(TokenType.IDENTIFIER, "Expect superclass method name.");
             return new Expr.Super(keyword, method);
         }
@@ -324,7 +479,7 @@ public class Parser {
         }
         if (match(TokenType.LEFT_PAREN)) {
             Expr expr = expression();
-            consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
+            expect(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
             return new Expr.Grouping(expr);
         }
         throw error(peek(), "Expect expression.");
@@ -354,29 +509,41 @@ public class Parser {
      */
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().getType() == type;
+        return peekType() == type;
     }
 
     /**
      * 前进一步
-     *
-     * @return 前进一步后的前一个Token
      */
-    private Token advance() {
-        if (!isAtEnd()) current++;
-        return previous();
+    private void advance() {
+        if (!isAtEnd()) {
+            previousBatch = batch;
+            previousIndex = index;
+            previous = null;
+            if (++index == batch.size()) {
+                batch = tokens.nextBatch();
+                index = 0;
+            }
+        }
     }
 
     private boolean isAtEnd() {
-        return peek().getType() == TokenType.EOF;
+        return peekType() == TokenType.EOF;
+    }
+
+    private TokenType peekType() {
+        return batch.type(index);
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return batch.token(index);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        if (previous == null) {
+            previous = previousBatch.token(previousIndex);
+        }
+        return previous;
     }
 
     /**
@@ -387,12 +554,24 @@ public class Parser {
      * @return 前进一步后的前一个Token
      */
     private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
-        throw error(peek(), message);
+        expect(type, message);
+        return previous();
+    }
+
+    /**
+     * 与 {@link #consume(TokenType, String)} 相同，但不需要 Token 对象
+     *
+     * @param type    要匹配的类型
+     * @param message 错误描述
+     */
+    private void expect(TokenType type, String message) {
+        if (!check(type)) throw error(peek(), message);
+        advance();
     }
 
     private ParseError error(Token token, String message) {
         Lox.error(token, message);
+        hadError = true;
         return new ParseError();
     }
 
@@ -402,8 +581,8 @@ public class Parser {
     private void synchronize() {
         advance();
         while (!isAtEnd()) {
-            if (previous().getType() == TokenType.SEMICOLON) return;
-            switch (peek().getType()) {
+            if (previousBatch.type(previousIndex) == TokenType.SEMICOLON) return;
+            switch (peekType()) {
                 case CLASS:
                 case FUN:
                 case VAR:
@@ -0,0 +1,113 @@
+package top.hzx.lox.scanner;
+
+import top.hzx.lox.Lox;
+import top.hzx.lox.token.TokenBuffer;
+import top.hzx.lox.token.TokenSource;
+import top.hzx.lox.token.TokenType;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 在后台线程中扫描的词法分析器
+ * <p>扫描线程把 Token 按批放入有界队列，Parser 在调用线程中边取边解析，扫描和解析同时进行。
+ * 队列满时扫描线程等待，内存中最多只有 {@link #QUEUE_CAPACITY} 批 Token。
+ * 词法错误随这批 Token 一起传回，在 Parser 取走这一批时由调用线程报告，报告时机与单线程扫描相同。
+ * 扫描失败时，失败前记录的词法错误和异常作为最后一批传回，先报告错误再抛出异常</p>
+ */
+public class PipelinedScanner implements TokenSource {
+
+    private static final int QUEUE_CAPACITY = 16;
+
+    /**
+     * 一批 Token 以及扫描它们时遇到的词法错误
+     */
+    private static class Batch {
+        private TokenBuffer tokens;
+        private final List<ScanError> errors = new ArrayList<>();
+        /**
+         * 扫描线程中的异常，如读文件失败，有异常的批是扫描线程放入的最后一批
+         */
+        private Throwable failure;
+    }
+
+    private static class ScanError {
+        private final int line;
+        private final String message;
+
+        private ScanError(int line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+    }
+
+    private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    /**
+     * 扫描线程正在填充的批，只在扫描线程中访问
+     */
+    private Batch filling = new Batch();
+
+    public PipelinedScanner(Reader reader) {
+        Thread thread = new Thread(() -> scan(reader), "lox-scanner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void scan(Reader reader) {
+        try {
+            Scanner scanner = new Scanner(reader,
+                    (line, message) -> filling.errors.add(new ScanError(line, message)));
+            TokenBuffer tokens;
+            do {
+                tokens = scanner.nextBatch();
+                filling.tokens = tokens;
+                queue.put(filling);
+                filling = new Batch();
+            } while (tokens.type(tokens.size() - 1) != TokenType.EOF);
+        } catch (InterruptedException e) {
+            fail(new IllegalStateException("Interrupted while scanning.", e));
+        } catch (RuntimeException | Error e) {
+            // 内存不足等错误也要交给调用线程，否则 Parser 会一直等待
+            fail(e);
+        }
+    }
+
+    /**
+     * 把正在填充的批连同异常放入队列，其中已经记录的词法错误不会丢失。
+     * 这一批必须放入，等待时被中断也继续等待，最后恢复中断状态
+     */
+    private void fail(Throwable failure) {
+        filling.failure = failure;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(filling);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    @Override
+    public TokenBuffer nextBatch() {
+        Batch next;
+        try {
+            next = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for tokens.", e);
+        }
+        for (ScanError error : next.errors) {
+            Lox.error(error.line, error.message);
+        }
+        if (next.failure instanceof Error) throw (Error) next.failure;
+        if (next.failure != null) throw (RuntimeException) next.failure;
+        return next.tokens;
+    }
+}
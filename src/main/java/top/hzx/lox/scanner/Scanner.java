@@ -2,75 +2,142 @@ package top.hzx.lox.scanner;
 
 import top.hzx.lox.Lox;
 import top.hzx.lox.token.Token;
+import top.hzx.lox.token.TokenBuffer;
+import top.hzx.lox.token.TokenSource;
 import top.hzx.lox.token.TokenType;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * 词法分析器
+ * <p>按需从 {@link Reader} 读取源码，每次调用 {@link #nextBatch()} 扫描出一批 Token，存放在 {@link TokenBuffer} 中，
+ * Token 的文本直接引用缓冲区里的字符。缓冲区写满后换用新的数组，旧数组由引用它的那批 Token 持有，
+ * 扫描大文件时不需要把整个源码和全部 Token 放在内存中</p>
  */
-public class Scanner {
-
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and", TokenType.AND);
-        keywords.put("class", TokenType.CLASS);
-        keywords.put("else", TokenType.ELSE);
-        keywords.put("false", TokenType.FALSE);
-        keywords.put("for", TokenType.FOR);
-        keywords.put("fun", TokenType.FUN);
-        keywords.put("if", TokenType.IF);
-        keywords.put("nil", TokenType.NIL);
-        keywords.put("or", TokenType.OR);
-        keywords.put("print", TokenType.PRINT);
-        keywords.put("return", TokenType.RETURN);
-        keywords.put("super", TokenType.SUPER);
-        keywords.put("this", TokenType.THIS);
-        keywords.put("true", TokenType.TRUE);
-        keywords.put("var", TokenType.VAR);
-        keywords.put("while", TokenType.WHILE);
+public class Scanner implements TokenSource {
 
+    /**
+     * 词法错误的处理方式
+     */
+    @FunctionalInterface
+    public interface ErrorHandler {
+        void error(int line, String message);
     }
 
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * 每批最多的 Token 数
+     */
+    private static final int BATCH_SIZE = 1024;
+
     /**
      * 源码
      */
-    private final String source;
+    private final Reader reader;
+
+    private final ErrorHandler errorHandler;
+
+    /**
+     * 已读入的源码，有效部分为 [0, limit)
+     */
+    private char[] buffer = new char[BUFFER_SIZE];
 
-    private final List<Token> tokens = new ArrayList<>();
+    private int limit = 0;
+
+    /**
+     * 源码是否已经读完
+     */
+    private boolean exhausted = false;
+
+    /**
+     * 最近扫描出的 Token 类型，还没有放进任何一批时不为null
+     */
+    private TokenType type;
     /**
-     * 记录每个token的开始位置
+     * 记录每个token在缓冲区中的开始位置
      */
     private int start = 0;
     /**
-     * 记录当前扫描位置
+     * 记录当前在缓冲区中的扫描位置
      */
     private int current = 0;
     /**
      * 行数
      */
     private int line = 1;
-    /**
-     * 列数
-     */
-    private int column = 1;
 
     public Scanner(String source) {
-        this.source = source;
+        this(new StringReader(source));
+    }
+
+    public Scanner(Reader reader) {
+        this(reader, Lox::error);
     }
 
+    public Scanner(Reader reader, ErrorHandler errorHandler) {
+        this.reader = reader;
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * 一次扫描出所有 Token
+     *
+     * @return 以 EOF 结尾的 Token 列表
+     */
     public List<Token> scanTokens() {
-        while (!isAtEnd()) {
+        List<Token> tokens = new ArrayList<>();
+        TokenBuffer batch;
+        do {
+            batch = nextBatch();
+            for (int i = 0; i < batch.size(); i++) {
+                tokens.add(batch.token(i));
+            }
+        } while (batch.type(batch.size() - 1) != TokenType.EOF);
+        return tokens;
+    }
+
+    /**
+     * 扫描下一批 Token，跳过空白和注释
+     * <p>一批 Token 的文本都在同一个数组中，扫描途中缓冲区换成了新数组时，这一批提前结束</p>
+     *
+     * @return 下一批 Token，源码结束时以 EOF 结尾
+     */
+    @Override
+    public TokenBuffer nextBatch() {
+        TokenBuffer batch = new TokenBuffer(buffer, BATCH_SIZE);
+        while (!batch.isFull()) {
+            if (type == null && !scanNext()) {
+                batch.add(TokenType.EOF, current, 0, line);
+                break;
+            }
+            if (batch.getSource() != buffer) {
+                if (batch.size() > 0) break;
+                batch = new TokenBuffer(buffer, BATCH_SIZE);
+            }
+            batch.add(type, start, current - start, line);
+            type = null;
+        }
+        return batch;
+    }
+
+    /**
+     * 扫描下一个 Token，结果记录在 {@link #type}、{@link #start} 和 {@link #current} 中
+     *
+     * @return 源码结束时返回 false
+     */
+    private boolean scanNext() {
+        while (type == null) {
             start = current;
+            if (isAtEnd()) return false;
             scanToken();
         }
-        tokens.add(new Token(TokenType.EOF, "", null, line, 0));
-        return tokens;
+        return true;
     }
 
     private void scanToken() {
@@ -149,7 +216,6 @@ public class Scanner {
 
             case '\n':
                 line++;
-                column = 1;
                 break;
 
             case '"':
@@ -161,7 +227,7 @@ public class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Lox.error(line, "Unexpected character.");
+                    errorHandler.error(line, "Unexpected character.");
                 }
                 break;
 
@@ -176,36 +242,69 @@ public class Scanner {
      */
     private char advance() {
         current++;
-        return source.charAt(current - 1);
+        return buffer[current - 1];
     }
 
     /**
-     * 添加一个Token
+     * 添加一个Token，文本就是缓冲区中的 [start, current)
      *
      * @param type 类型
      */
     private void addToken(TokenType type) {
-        addToken(type, null);
+        this.type = type;
     }
 
     /**
-     * 添加一个Token
+     * 判断是否已经扫描完源码
      *
-     * @param type    类型
-     * @param literal 值
+     * @return true or false
      */
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line, column));
+    private boolean isAtEnd() {
+        return !available(0);
     }
 
     /**
-     * 判断是否已经扫描完源码
+     * 确保当前位置之后的第 ahead 个字符已经读入缓冲区
      *
-     * @return true or false
+     * @param ahead 与当前位置的距离
+     * @return 源码没有这么长时返回 false
      */
-    private boolean isAtEnd() {
-        return current >= source.length();
+    private boolean available(int ahead) {
+        while (current + ahead >= limit) {
+            if (!fill()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 从 Reader 读入更多源码
+     * <p>缓冲区写满时换用新数组，只把当前 Token 已经读入的部分复制过去，当前 Token 放不下时加倍。
+     * 旧数组不再修改，已经扫描出的 Token 仍然可以引用其中的文本</p>
+     *
+     * @return 源码已经读完时返回 false
+     */
+    private boolean fill() {
+        if (exhausted) return false;
+        if (limit == buffer.length) {
+            int pending = limit - start;
+            char[] next = new char[pending * 2 > BUFFER_SIZE ? pending * 2 : BUFFER_SIZE];
+            System.arraycopy(buffer, start, next, 0, pending);
+            buffer = next;
+            limit = pending;
+            current -= start;
+            start = 0;
+        }
+        try {
+            int read = reader.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                exhausted = true;
+                return false;
+            }
+            limit += read;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
@@ -216,8 +315,8 @@ public class Scanner {
      */
     private boolean match(char expected) {
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
-        newLine();
+        if (buffer[current] != expected) return false;
+        current++;
         return true;
     }
 
@@ -228,42 +327,31 @@ public class Scanner {
      */
     private char peek() {
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return buffer[current];
     }
 
     private void string() {
         // 字符串
-        StringBuilder sb = new StringBuilder();
         while (peek() != '"' && !isAtEnd()) {
-            if (peek() == '\n') {
-                newLine();
-            }
-            sb.append(advance());
+            if (peek() == '\n') line++;
+            advance();
         }
         if (isAtEnd()) {
             //  unterminated string
-            Lox.error(line, "Unterminated string.");
+            errorHandler.error(line, "Unterminated string.");
             return;
         }
         // The closing ".
         advance();
-        addToken(TokenType.STRING, sb.toString());
-    }
-
-    /**
-     * 换行
-     * <p>推进去line计数器，column计数器归为1</p>
-     */
-    private void newLine() {
-        line++;
-        column = 1;
+        // 值在 Parser 需要时才从文本中截取
+        addToken(TokenType.STRING);
     }
 
     private boolean isDigit(char c) {
         return c >= '0' && c <= '9';
     }
 
-    public void number() {
+    private void number() {
         while (isDigit(peek())) advance();
         // Look for a fractional part.
         if (peek() == '.' && isDigit(peekNext())) {
@@ -272,7 +360,8 @@ public class Scanner {
             while (isDigit(peek())) advance();
 
         }
-        addToken(TokenType.NUMBER, Double.parseDouble(source.substring(start, current)));
+        // 值在 Parser 需要时才直接从字符解析
+        addToken(TokenType.NUMBER);
     }
 
     /**
@@ -281,8 +370,8 @@ public class Scanner {
      * @return 下下个字符
      */
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        if (!available(1)) return '\0';
+        return buffer[current + 1];
     }
 
     private boolean isAlpha(char c) {
@@ -295,12 +384,75 @@ public class Scanner {
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
         // See if the identifier is a reserved word.
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) {
-            type = TokenType.IDENTIFIER;
+        addToken(keyword());
+    }
+
+    /**
+     * 按首字母分支，再逐个比较剩余字符，不需要先截取字符串
+     *
+     * @return 关键字的类型，不是关键字时返回 IDENTIFIER
+     */
+    private TokenType keyword() {
+        switch (buffer[start]) {
+            case 'a':
+                return checkKeyword(1, "nd", TokenType.AND);
+            case 'c':
+                return checkKeyword(1, "lass", TokenType.CLASS);
+            case 'e':
+                return checkKeyword(1, "lse", TokenType.ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (buffer[start + 1]) {
+                        case 'a':
+                            return checkKeyword(2, "lse", TokenType.FALSE);
+                        case 'o':
+                            return checkKeyword(2, "r", TokenType.FOR);
+                        case 'u':
+                            return checkKeyword(2, "n", TokenType.FUN);
+                    }
+                }
+                break;
+            case 'i':
+                return checkKeyword(1, "f", TokenType.IF);
+            case 'n':
+                return checkKeyword(1, "il", TokenType.NIL);
+            case 'o':
+                return checkKeyword(1, "r", TokenType.OR);
+            case 'p':
+                return checkKeyword(1, "rint", TokenType.PRINT);
+            case 'r':
+                return checkKeyword(1, "eturn", TokenType.RETURN);
+            case 's':
+                return checkKeyword(1, "uper", TokenType.SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (buffer[start + 1]) {
+                        case 'h':
+                            return checkKeyword(2, "is", TokenType.THIS);
+                        case 'r':
+                            return checkKeyword(2, "ue", TokenType.TRUE);
+                    }
+                }
+                break;
+            case 'v':
+                return checkKeyword(1, "ar", TokenType.VAR);
+            case 'w':
+                return checkKeyword(1, "hile", TokenType.WHILE);
+        }
+        return TokenType.IDENTIFIER;
+    }
+
+    /**
+     * @param offset 已经比较过的字符数
+     * @param rest   关键字剩余的字符
+     * @param type   关键字的类型
+     */
+    private TokenType checkKeyword(int offset, String rest, TokenType type) {
+        if (current - start != offset + rest.length()) return TokenType.IDENTIFIER;
+        for (int i = 0; i < rest.length(); i++) {
+            if (buffer[start + offset + i] != rest.charAt(i)) return TokenType.IDENTIFIER;
         }
-        addToken(type);
+        return type;
     }
 
     private boolean isAlphaNumeric(char c) {
@@ -0,0 +1,93 @@
+package top.hzx.lox.symbol;
+
+import java.util.Arrays;
+
+/**
+ * 以符号编号为键的哈希表
+ * <p>开放寻址、线性探测，键直接是 int，查找时不需要装箱，也不需要计算字符串的哈希</p>
+ *
+ * @param <V> 值的类型
+ */
+public final class SymbolMap<V> {
+
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+
+    private Object[] values;
+
+    private int size = 0;
+
+    public SymbolMap() {
+        this(8);
+    }
+
+    /**
+     * @param capacity 预计的元素个数
+     */
+    public SymbolMap(int capacity) {
+        int length = 4;
+        // 负载因子不超过 0.5
+        while (length < capacity * 2) length <<= 1;
+        allocate(length);
+    }
+
+    private void allocate(int length) {
+        keys = new int[length];
+        Arrays.fill(keys, EMPTY);
+        values = new Object[length];
+    }
+
+    /**
+     * @param symbol 符号编号
+     * @return 值，不存在时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int symbol) {
+        int mask = keys.length - 1;
+        for (int i = symbol & mask; ; i = (i + 1) & mask) {
+            int key = keys[i];
+            if (key == symbol) return (V) values[i];
+            if (key == EMPTY) return null;
+        }
+    }
+
+    public void put(int symbol, V value) {
+        int mask = keys.length - 1;
+        int i = symbol & mask;
+        while (keys[i] != EMPTY && keys[i] != symbol) {
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == EMPTY) {
+            keys[i] = symbol;
+            if (++size * 2 > keys.length) {
+                values[i] = value;
+                rehash();
+                return;
+            }
+        }
+        values[i] = value;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void putAll(SymbolMap<? extends V> other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.keys[i] != EMPTY) put(other.keys[i], (V) other.values[i]);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void rehash() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(keys.length * 2);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) put(oldKeys[i], (V) oldValues[i]);
+        }
+    }
+}
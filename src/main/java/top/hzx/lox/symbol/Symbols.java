@@ -0,0 +1,122 @@
+package top.hzx.lox.symbol;
+
+import java.util.Arrays;
+
+/**
+ * 全局符号表
+ * <p>每个标识符在 Parser 创建它的 Token 时驻留一次，得到从 0 开始连续分配的编号。全局变量、方法表和字段都按编号存取，
+ * 运行时不再对名字字符串反复计算哈希；同名的标识符也共享同一个 String 对象。
+ * 驻留直接比较扫描缓冲区中的字符，已经驻留过的标识符不需要先复制出一个字符串</p>
+ */
+public final class Symbols {
+
+    /**
+     * 开放寻址的哈希表，存放编号加一，0 表示空槽
+     */
+    private static int[] table = new int[512];
+
+    /**
+     * 编号到名字
+     */
+    private static String[] names = new String[256];
+
+    /**
+     * 编号到名字的哈希值
+     */
+    private static int[] hashes = new int[256];
+
+    private static int count = 0;
+
+    /**
+     * 初始化方法的名字
+     */
+    public static final int INIT = intern("init");
+
+    private Symbols() {
+    }
+
+    /**
+     * 驻留标识符
+     *
+     * @param name 标识符
+     * @return 编号，同名的标识符总是得到同一个编号
+     */
+    public static int intern(String name) {
+        return intern(name.toCharArray(), 0, name.length());
+    }
+
+    /**
+     * 驻留字符数组中的一段
+     *
+     * @param chars  字符数组
+     * @param offset 起始位置
+     * @param length 长度
+     * @return 编号，同名的标识符总是得到同一个编号
+     */
+    public static int intern(char[] chars, int offset, int length) {
+        int hash = hash(chars, offset, length);
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        for (int entry; (entry = table[slot]) != 0; slot = (slot + 1) & mask) {
+            if (hashes[entry - 1] == hash && matches(names[entry - 1], chars, offset, length)) {
+                return entry - 1;
+            }
+        }
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            hashes = Arrays.copyOf(hashes, count * 2);
+        }
+        names[count] = new String(chars, offset, length);
+        hashes[count] = hash;
+        table[slot] = count + 1;
+        count++;
+        // 装载因子不超过一半
+        if (count * 2 > table.length) {
+            rehash();
+        }
+        return count - 1;
+    }
+
+    private static int hash(char[] chars, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(String name, char[] chars, int offset, int length) {
+        if (name.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != chars[offset + i]) return false;
+        }
+        return true;
+    }
+
+    private static void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int symbol = 0; symbol < count; symbol++) {
+            int slot = hashes[symbol] & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = symbol + 1;
+        }
+    }
+
+    /**
+     * @param symbol 编号
+     * @return 驻留的名字
+     */
+    public static String name(int symbol) {
+        return names[symbol];
+    }
+
+    /**
+     * @return 已分配的编号个数
+     */
+    public static int count() {
+        return count;
+    }
+}
@@ -1,5 +1,7 @@
 package top.hzx.lox.token;
 
+import top.hzx.lox.symbol.Symbols;
+
 public class Token {
     /**
      * Token 类型
@@ -21,13 +23,22 @@ public class Token {
      * Token 所在列
      */
     private final int column;
+    /**
+     * 标识符在符号表中的编号，其他 Token 为-1
+     */
+    private final int symbol;
 
     public Token(TokenType type, String lexeme, Object literal, int line, int column) {
+        this(type, lexeme, literal, line, column, type == TokenType.IDENTIFIER ? Symbols.intern(lexeme) : -1);
+    }
+
+    public Token(TokenType type, String lexeme, Object literal, int line, int column, int symbol) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
         this.column = column;
+        this.symbol = symbol;
     }
 
     public TokenType getType() {
@@ -49,4 +60,8 @@ public class Token {
     public int getColumn() {
         return column;
     }
+
+    public int getSymbol() {
+        return symbol;
+    }
 }
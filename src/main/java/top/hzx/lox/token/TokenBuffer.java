@@ -0,0 +1,228 @@
+package top.hzx.lox.token;
+
+import top.hzx.lox.symbol.Symbols;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 一批 Token 的紧凑表示
+ * <p>每个 Token 只占类型、起始位置、长度和行号四个数组中的一格，文本不复制，是扫描缓冲区 {@link #source} 中的一段。
+ * Parser 只按类型判断语法结构，需要放进语法树或报告错误时才调用 {@link #token(int)} 创建 {@link Token} 对象；
+ * 标识符此时才驻留，数字此时才从字符直接解析，不生成中间字符串</p>
+ */
+public final class TokenBuffer {
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    /**
+     * 关键字和符号的文本是固定的，创建 Token 时共用同一个 String
+     */
+    private static final Map<TokenType, String> FIXED_LEXEMES = new EnumMap<>(TokenType.class);
+
+    static {
+        FIXED_LEXEMES.put(TokenType.LEFT_PAREN, "(");
+        FIXED_LEXEMES.put(TokenType.RIGHT_PAREN, ")");
+        FIXED_LEXEMES.put(TokenType.LEFT_BRACE, "{");
+        FIXED_LEXEMES.put(TokenType.RIGHT_BRACE, "}");
+        FIXED_LEXEMES.put(TokenType.COMMA, ",");
+        FIXED_LEXEMES.put(TokenType.DOT, ".");
+        FIXED_LEXEMES.put(TokenType.MINUS, "-");
+        FIXED_LEXEMES.put(TokenType.PLUS, "+");
+        FIXED_LEXEMES.put(TokenType.SEMICOLON, ";");
+        FIXED_LEXEMES.put(TokenType.SLASH, "/");
+        FIXED_LEXEMES.put(TokenType.STAR, "*");
+        FIXED_LEXEMES.put(TokenType.BANG, "!");
+        FIXED_LEXEMES.put(TokenType.BANG_EQUAL, "!=");
+        FIXED_LEXEMES.put(TokenType.EQUAL, "=");
+        FIXED_LEXEMES.put(TokenType.EQUAL_EQUAL, "==");
+        FIXED_LEXEMES.put(TokenType.GREATER, ">");
+        FIXED_LEXEMES.put(TokenType.GREATER_EQUAL, ">=");
+        FIXED_LEXEMES.put(TokenType.LESS, "<");
+        FIXED_LEXEMES.put(TokenType.LESS_EQUAL, "<=");
+        // 关键字的文本就是类型名的小写
+        for (TokenType type : TYPES) {
+            if (type.compareTo(TokenType.AND) >= 0 && type != TokenType.EOF) {
+                FIXED_LEXEMES.put(type, type.name().toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    /**
+     * 10 的整数次幂，不超过 10^22 时可以用 double 精确表示
+     */
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /**
+     * Token 文本所在的字符数组，由 {@link #of(List)} 创建时为null
+     */
+    private final char[] source;
+
+    private final byte[] types;
+
+    private final int[] starts;
+
+    private final int[] lengths;
+
+    private final int[] lines;
+
+    /**
+     * 已经创建好的 Token，只有由 {@link #of(List)} 创建时不为null
+     */
+    private final Token[] tokens;
+
+    private int size = 0;
+
+    /**
+     * @param source   Token 文本所在的字符数组
+     * @param capacity 最多容纳的 Token 数
+     */
+    public TokenBuffer(char[] source, int capacity) {
+        this(source, capacity, null);
+    }
+
+    private TokenBuffer(char[] source, int capacity, Token[] tokens) {
+        this.source = source;
+        this.types = new byte[capacity];
+        this.starts = new int[capacity];
+        this.lengths = new int[capacity];
+        this.lines = new int[capacity];
+        this.tokens = tokens;
+    }
+
+    /**
+     * 包装已经创建好的 Token
+     *
+     * @param tokens 以 EOF 结尾的 Token 列表
+     */
+    public static TokenBuffer of(List<Token> tokens) {
+        TokenBuffer buffer = new TokenBuffer(null, tokens.size(), tokens.toArray(new Token[0]));
+        for (Token token : tokens) {
+            buffer.add(token.getType(), 0, 0, token.getLine());
+        }
+        return buffer;
+    }
+
+    /**
+     * 复制 [from, to) 范围内的 Token，文本仍然引用同一个字符数组
+     */
+    public TokenBuffer slice(int from, int to) {
+        TokenBuffer slice = new TokenBuffer(source, to - from,
+                tokens == null ? null : Arrays.copyOfRange(tokens, from, to));
+        System.arraycopy(types, from, slice.types, 0, to - from);
+        System.arraycopy(starts, from, slice.starts, 0, to - from);
+        System.arraycopy(lengths, from, slice.lengths, 0, to - from);
+        System.arraycopy(lines, from, slice.lines, 0, to - from);
+        slice.size = to - from;
+        return slice;
+    }
+
+    /**
+     * 追加一个 Token
+     *
+     * @param type   类型
+     * @param start  文本在 source 中的起始位置
+     * @param length 文本长度
+     * @param line   所在行
+     */
+    public void add(TokenType type, int start, int length, int line) {
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        lines[size] = line;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == types.length;
+    }
+
+    public char[] getSource() {
+        return source;
+    }
+
+    public TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    public int line(int index) {
+        return lines[index];
+    }
+
+    /**
+     * @return 字符串或数字 Token 的值，其他 Token 为null
+     */
+    public Object literal(int index) {
+        if (tokens != null) return tokens[index].getLiteral();
+        switch (type(index)) {
+            case STRING:
+                // 去掉两端的引号
+                return new String(source, starts[index] + 1, lengths[index] - 2);
+            case NUMBER:
+                return parseNumber(source, starts[index], lengths[index]);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 创建第 index 个 Token 的对象
+     */
+    public Token token(int index) {
+        if (tokens != null) return tokens[index];
+        TokenType type = type(index);
+        int line = lines[index];
+        switch (type) {
+            case IDENTIFIER:
+                int symbol = Symbols.intern(source, starts[index], lengths[index]);
+                return new Token(type, Symbols.name(symbol), null, line, 1, symbol);
+            case STRING:
+            case NUMBER:
+                return new Token(type, new String(source, starts[index], lengths[index]), literal(index), line, 1);
+            case EOF:
+                return new Token(type, "", null, line, 0);
+            default:
+                return new Token(type, FIXED_LEXEMES.get(type), null, line, 1);
+        }
+    }
+
+    /**
+     * 直接从字符解析数字
+     * <p>有效数字不超过 15 位、小数不超过 22 位时，整数部分和 10 的幂都能用 double 精确表示，
+     * 一次除法得到的就是正确舍入的结果；其他情况交给 {@link Double#parseDouble(String)}</p>
+     */
+    private static double parseNumber(char[] chars, int start, int length) {
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        for (int i = start; i < start + length; i++) {
+            char c = chars[i];
+            if (c == '.') {
+                fraction = true;
+                continue;
+            }
+            mantissa = mantissa * 10 + (c - '0');
+            if (mantissa != 0) digits++;
+            if (fraction) scale++;
+            if (digits > 15 || scale >= POWERS_OF_TEN.length) {
+                return Double.parseDouble(new String(chars, start, length));
+            }
+        }
+        return scale == 0 ? (double) mantissa : mantissa / POWERS_OF_TEN[scale];
+    }
+}
@@ -0,0 +1,14 @@
+package top.hzx.lox.token;
+
+/**
+ * 按批产生 Token，供 Parser 按需读取
+ */
+@FunctionalInterface
+public interface TokenSource {
+
+    /**
+     * @return 下一批 Token，不为空；最后一批以 EOF 结尾，之后不再调用
+     */
+    TokenBuffer nextBatch();
+
+}
@@ -0,0 +1,86 @@
+package top.hzx.lox.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一段字节码，包含指令、常量池和行号表
+ */
+public class Chunk {
+
+    private byte[] code = new byte[64];
+
+    /**
+     * 行号表，与 code 一一对应
+     */
+    private int[] lines = new int[64];
+
+    private int count = 0;
+
+    private final List<Object> constants = new ArrayList<>();
+
+    /**
+     * 常量去重，相同的数字与字符串只占用一个常量下标
+     */
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    private Object[] constantArray;
+
+    public void write(byte b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = b;
+        lines[count] = line;
+        count++;
+    }
+
+    public void patch(int offset, byte b) {
+        code[offset] = b;
+    }
+
+    /**
+     * 添加常量
+     *
+     * @param value 常量值
+     * @return 常量下标
+     */
+    public int addConstant(Object value) {
+        // ObjFunction 不参与去重，每个函数都是独立的常量
+        if (value instanceof Double || value instanceof String) {
+            Integer index = constantIndex.get(value);
+            if (index != null) return index;
+            constantIndex.put(value, constants.size());
+        }
+        constants.add(value);
+        constantArray = null;
+        return constants.size() - 1;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public byte[] getCode() {
+        return code;
+    }
+
+    public int getLine(int offset) {
+        return lines[offset];
+    }
+
+    public Object[] getConstants() {
+        if (constantArray == null) {
+            constantArray = constants.toArray();
+        }
+        return constantArray;
+    }
+
+    public int getConstantCount() {
+        return constants.size();
+    }
+}
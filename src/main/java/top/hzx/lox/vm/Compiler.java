@@ -0,0 +1,723 @@
+package top.hzx.lox.vm;
+
+import top.hzx.lox.Lox;
+import top.hzx.lox.ast.Expr;
+import top.hzx.lox.ast.Stmt;
+import top.hzx.lox.token.Token;
+import top.hzx.lox.token.TokenType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 将经过 Resolver 检查的语法树编译为字节码
+ * <p>局部变量直接分配在虚拟机栈上，被内层函数捕获的变量通过上值访问</p>
+ */
+public class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private static final int MAX_LOCALS = 256;
+
+    private static final int MAX_UPVALUES = 256;
+
+    private static final int MAX_SHORT = 0xffff;
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        METHOD,
+        INITIALIZER,
+    }
+
+    private static class Local {
+        private final String name;
+        /**
+         * 所在作用域深度，-1 表示尚未初始化
+         */
+        private int depth;
+        /**
+         * 是否被内层函数捕获
+         */
+        private boolean captured = false;
+
+        private Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        /**
+         * 外层函数的局部变量槽位或上值下标
+         */
+        private final int index;
+        private final boolean isLocal;
+
+        private Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    /**
+     * 正在编译的函数
+     */
+    private static class FunctionState {
+        private final FunctionState enclosing;
+        private final ObjFunction function;
+        private final FunctionType type;
+        private final List<Local> locals = new ArrayList<>();
+        private final List<Upvalue> upvalues = new ArrayList<>();
+        private int scopeDepth = 0;
+        /**
+         * 当前栈深度，用于计算函数执行时需要的最大栈深度
+         */
+        private int stackDepth = 1;
+        private int maxStack = 1;
+
+        private FunctionState(FunctionState enclosing, ObjFunction function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+            // 槽位 0 保留给被调用的函数本身，方法中用于存放 this
+            boolean isMethod = type == FunctionType.METHOD || type == FunctionType.INITIALIZER;
+            locals.add(new Local(isMethod ? "this" : "", 0));
+        }
+    }
+
+    private static class ClassState {
+        private final ClassState enclosing;
+        private boolean hasSuperclass = false;
+
+        private ClassState(ClassState enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
+    /**
+     * 分配全局变量下标的虚拟机
+     */
+    private final VM vm;
+
+    private FunctionState current;
+
+    private ClassState currentClass;
+
+    /**
+     * 最近访问的 Token 所在的行，写入行号表
+     */
+    private int line = 1;
+
+    public Compiler(VM vm) {
+        this.vm = vm;
+    }
+
+    public ObjFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, new ObjFunction(null, 0), FunctionType.SCRIPT);
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        emitReturn();
+        return endFunction();
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private ObjFunction endFunction() {
+        ObjFunction function = current.function;
+        function.setUpvalueCount(current.upvalues.size());
+        function.setMaxStack(current.maxStack);
+        current = current.enclosing;
+        return function;
+    }
+
+    // ---------------------------------------------------------------- 语句
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.getStatements()) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        Token className = stmt.getName();
+        line = className.getLine();
+        declareVariable(className);
+        emitOp(OpCode.CLASS, 1);
+        emitShort(identifierConstant(className.getLexeme()));
+        defineVariable(className.getLexeme());
+
+        ClassState classState = new ClassState(currentClass);
+        currentClass = classState;
+        if (stmt.getSuperclass() != null) {
+            compile(stmt.getSuperclass());
+            // 父类留在栈上，作为 super 局部变量供方法捕获
+            beginScope();
+            addLocal("super");
+            markInitialized();
+            namedVariable(className.getLexeme());
+            line = stmt.getSuperclass().getName().getLine();
+            emitOp(OpCode.INHERIT, -1);
+            classState.hasSuperclass = true;
+        }
+
+        namedVariable(className.getLexeme());
+        for (Stmt.Function method : stmt.getMethods()) {
+            FunctionType type = FunctionType.METHOD;
+            if (method.getName().getLexeme().equals("init")) {
+                type = FunctionType.INITIALIZER;
+            }
+            function(method, type);
+            emitOp(OpCode.METHOD, -1);
+            emitShort(identifierConstant(method.getName().getLexeme()));
+        }
+        emitOp(OpCode.POP, -1);
+
+        if (classState.hasSuperclass) {
+            endScope();
+        }
+        currentClass = classState.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.getExpression());
+        emitOp(OpCode.POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.getName().getLine();
+        if (current.scopeDepth > 0) {
+            declareVariable(stmt.getName());
+            // 函数可以递归引用自己，所以在编译函数体之前就完成初始化
+            markInitialized();
+        }
+        function(stmt, FunctionType.FUNCTION);
+        if (current.scopeDepth == 0) {
+            emitOp(OpCode.DEFINE_GLOBAL, -1);
+            emitShort(globalSlot(stmt.getName().getLexeme()));
+        }
+        return null;
+    }
+
+    private void function(Stmt.Function stmt, FunctionType type) {
+        FunctionState state = new FunctionState(current,
+                new ObjFunction(stmt.getName().getLexeme(), stmt.getParams().size()), type);
+        current = state;
+        beginScope();
+        for (Token param : stmt.getParams()) {
+            declareVariable(param);
+            markInitialized();
+            adjustStack(1);
+        }
+        for (Stmt statement : stmt.getBody()) {
+            compile(statement);
+        }
+        emitReturn();
+        // 不需要 endScope，返回时整个调用帧都会被丢弃
+        ObjFunction function = endFunction();
+
+        line = stmt.getName().getLine();
+        emitOp(OpCode.CLOSURE, 1);
+        emitShort(makeConstant(function));
+        for (Upvalue upvalue : state.upvalues) {
+            emitByte(upvalue.isLocal ? 1 : 0);
+            emitByte(upvalue.index);
+        }
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.getCondition());
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitOp(OpCode.POP, -1);
+        compile(stmt.getThenBranch());
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        // 另一条路径上条件值仍在栈上
+        emitOp(OpCode.POP, 0);
+        if (stmt.getElseBranch() != null) {
+            compile(stmt.getElseBranch());
+        }
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.getExpression());
+        emitOp(OpCode.PRINT, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.getKeyword().getLine();
+        if (stmt.getValue() == null) {
+            emitReturn();
+        } else {
+            compile(stmt.getValue());
+            emitOp(OpCode.RETURN, -1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.getName().getLine();
+        if (current.scopeDepth > 0) {
+            declareVariable(stmt.getName());
+        }
+        if (stmt.getInitializer() != null) {
+            compile(stmt.getInitializer());
+        } else {
+            emitOp(OpCode.NIL, 1);
+        }
+        defineVariable(stmt.getName().getLexeme());
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        beginScope();
+        if (stmt.getInitializer() != null) compile(stmt.getInitializer());
+        int loopStart = chunk().getCount();
+        int exitJump = -1;
+        if (stmt.getCondition() != null) {
+            compile(stmt.getCondition());
+            exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emitOp(OpCode.POP, -1);
+        }
+        compile(stmt.getBody());
+        if (stmt.getIncrement() != null) {
+            compile(stmt.getIncrement());
+            emitOp(OpCode.POP, -1);
+        }
+        emitLoop(loopStart);
+        if (exitJump != -1) {
+            patchJump(exitJump);
+            // 退出时条件值仍在栈上
+            emitOp(OpCode.POP, 0);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = chunk().getCount();
+        compile(stmt.getCondition());
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitOp(OpCode.POP, -1);
+        compile(stmt.getBody());
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        emitOp(OpCode.POP, 0);
+        return null;
+    }
+
+    // ---------------------------------------------------------------- 表达式
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.getValue());
+        line = expr.getName().getLine();
+        String name = expr.getName().getLexeme();
+        int arg = resolveLocal(current, name);
+        if (arg != -1) {
+            emitOp(OpCode.SET_LOCAL, 0);
+            emitByte(arg);
+        } else if ((arg = resolveUpvalue(current, name)) != -1) {
+            emitOp(OpCode.SET_UPVALUE, 0);
+            emitByte(arg);
+        } else {
+            emitOp(OpCode.SET_GLOBAL, 0);
+            emitShort(globalSlot(name));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.getLeft());
+        compile(expr.getRight());
+        line = expr.getOperator().getLine();
+        switch (expr.getOperator().getType()) {
+            case BANG_EQUAL:
+                emitOp(OpCode.EQUAL, -1);
+                emitOp(OpCode.NOT, 0);
+                break;
+            case EQUAL_EQUAL:
+                emitOp(OpCode.EQUAL, -1);
+                break;
+            case GREATER:
+                emitOp(OpCode.GREATER, -1);
+                break;
+            case GREATER_EQUAL:
+                emitOp(OpCode.GREATER_EQUAL, -1);
+                break;
+            case LESS:
+                emitOp(OpCode.LESS, -1);
+                break;
+            case LESS_EQUAL:
+                emitOp(OpCode.LESS_EQUAL, -1);
+                break;
+            case PLUS:
+                emitOp(OpCode.ADD, -1);
+                break;
+            case MINUS:
+                emitOp(OpCode.SUBTRACT, -1);
+                break;
+            case STAR:
+                emitOp(OpCode.MULTIPLY, -1);
+                break;
+            case SLASH:
+                emitOp(OpCode.DIVIDE, -1);
+                break;
+            default:
+                throw new IllegalStateException("Unexpected binary operator " + expr.getOperator().getType());
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        int argCount = expr.getArguments().size();
+        if (expr.getCallee() instanceof Expr.Get) {
+            // obj.method(...) 直接调用，不创建绑定方法
+            Expr.Get get = (Expr.Get) expr.getCallee();
+            compile(get.getObject());
+            compileArguments(expr.getArguments());
+            line = expr.getParen().getLine();
+            emitOp(OpCode.INVOKE, -argCount);
+            emitShort(identifierConstant(get.getName().getLexeme()));
+            emitByte(argCount);
+        } else if (expr.getCallee() instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super) expr.getCallee();
+            namedVariable("this");
+            compileArguments(expr.getArguments());
+            namedVariable("super");
+            line = expr.getParen().getLine();
+            emitOp(OpCode.SUPER_INVOKE, -(argCount + 1));
+            emitShort(identifierConstant(superExpr.getMethod().getLexeme()));
+            emitByte(argCount);
+        } else {
+            compile(expr.getCallee());
+            compileArguments(expr.getArguments());
+            line = expr.getParen().getLine();
+            emitOp(OpCode.CALL, -argCount);
+            emitByte(argCount);
+        }
+        return null;
+    }
+
+    private void compileArguments(List<Expr> arguments) {
+        for (Expr argument : arguments) {
+            compile(argument);
+        }
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.getObject());
+        line = expr.getName().getLine();
+        emitOp(OpCode.GET_PROPERTY, 0);
+        emitShort(identifierConstant(expr.getName().getLexeme()));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.getExpression());
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.getValue();
+        if (value == null) {
+            emitOp(OpCode.NIL, 1);
+        } else if (value.equals(Boolean.TRUE)) {
+            emitOp(OpCode.TRUE, 1);
+        } else if (value.equals(Boolean.FALSE)) {
+            emitOp(OpCode.FALSE, 1);
+        } else {
+            emitOp(OpCode.CONSTANT, 1);
+            emitShort(makeConstant(value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.getLeft());
+        if (expr.getOperator().getType() == TokenType.OR) {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            emitOp(OpCode.POP, -1);
+            compile(expr.getRight());
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emitOp(OpCode.POP, -1);
+            compile(expr.getRight());
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.getObject());
+        compile(expr.getValue());
+        line = expr.getName().getLine();
+        emitOp(OpCode.SET_PROPERTY, -1);
+        emitShort(identifierConstant(expr.getName().getLexeme()));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        line = expr.getKeyword().getLine();
+        namedVariable("this");
+        namedVariable("super");
+        emitOp(OpCode.GET_SUPER, -1);
+        emitShort(identifierConstant(expr.getMethod().getLexeme()));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        line = expr.getKeyword().getLine();
+        namedVariable("this");
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.getRight());
+        line = expr.getOperator().getLine();
+        if (expr.getOperator().getType() == TokenType.MINUS) {
+            emitOp(OpCode.NEGATE, 0);
+        } else {
+            emitOp(OpCode.NOT, 0);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.getName().getLine();
+        namedVariable(expr.getName().getLexeme());
+        return null;
+    }
+
+    // ---------------------------------------------------------------- 变量
+
+    private void namedVariable(String name) {
+        int arg = resolveLocal(current, name);
+        if (arg != -1) {
+            emitOp(OpCode.GET_LOCAL, 1);
+            emitByte(arg);
+        } else if ((arg = resolveUpvalue(current, name)) != -1) {
+            emitOp(OpCode.GET_UPVALUE, 1);
+            emitByte(arg);
+        } else {
+            emitOp(OpCode.GET_GLOBAL, 1);
+            emitShort(globalSlot(name));
+        }
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            Local local = state.locals.get(i);
+            if (local.depth != -1 && local.name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).captured = true;
+            return addUpvalue(state, local, true);
+        }
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false);
+        }
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) {
+                return i;
+            }
+        }
+        if (state.upvalues.size() == MAX_UPVALUES) {
+            Lox.error(line, "Too many closure variables in function.");
+            return 0;
+        }
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    private void declareVariable(Token name) {
+        if (current.scopeDepth == 0) return;
+        if (current.locals.size() == MAX_LOCALS) {
+            Lox.error(name, "Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name.getLexeme(), -1));
+    }
+
+    private void addLocal(String name) {
+        current.locals.add(new Local(name, -1));
+    }
+
+    /**
+     * 定义变量：全局变量写入全局表，局部变量的值已经在栈上，只需标记为已初始化
+     *
+     * @param name 变量名
+     */
+    private void defineVariable(String name) {
+        if (current.scopeDepth > 0) {
+            markInitialized();
+            return;
+        }
+        emitOp(OpCode.DEFINE_GLOBAL, -1);
+        emitShort(globalSlot(name));
+    }
+
+    private void markInitialized() {
+        if (current.scopeDepth == 0) return;
+        current.locals.get(current.locals.size() - 1).depth = current.scopeDepth;
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            if (locals.get(locals.size() - 1).captured) {
+                emitOp(OpCode.CLOSE_UPVALUE, -1);
+            } else {
+                emitOp(OpCode.POP, -1);
+            }
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    // ---------------------------------------------------------------- 字节码
+
+    private Chunk chunk() {
+        return current.function.getChunk();
+    }
+
+    /**
+     * 写入一条指令
+     *
+     * @param op          指令
+     * @param stackEffect 指令对栈深度的影响
+     */
+    private void emitOp(byte op, int stackEffect) {
+        chunk().write(op, line);
+        adjustStack(stackEffect);
+    }
+
+    private void adjustStack(int stackEffect) {
+        current.stackDepth += stackEffect;
+        if (current.stackDepth > current.maxStack) {
+            current.maxStack = current.stackDepth;
+        }
+    }
+
+    private void emitByte(int b) {
+        chunk().write((byte) b, line);
+    }
+
+    private void emitShort(int value) {
+        emitByte((value >> 8) & 0xff);
+        emitByte(value & 0xff);
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            // 初始化器总是返回 this
+            emitOp(OpCode.GET_LOCAL, 1);
+            emitByte(0);
+        } else {
+            emitOp(OpCode.NIL, 1);
+        }
+        emitOp(OpCode.RETURN, -1);
+    }
+
+    private int emitJump(byte op) {
+        emitOp(op, 0);
+        emitShort(MAX_SHORT);
+        return chunk().getCount() - 2;
+    }
+
+    private void patchJump(int offset) {
+        int jump = chunk().getCount() - offset - 2;
+        if (jump > MAX_SHORT) {
+            Lox.error(line, "Too much code to jump over.");
+        }
+        chunk().patch(offset, (byte) ((jump >> 8) & 0xff));
+        chunk().patch(offset + 1, (byte) (jump & 0xff));
+    }
+
+    private void emitLoop(int loopStart) {
+        emitOp(OpCode.LOOP, 0);
+        int offset = chunk().getCount() - loopStart + 2;
+        if (offset > MAX_SHORT) {
+            Lox.error(line, "Loop body too large.");
+        }
+        emitShort(offset);
+    }
+
+    private int makeConstant(Object value) {
+        int constant = chunk().addConstant(value);
+        if (constant > MAX_SHORT) {
+            Lox.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return constant;
+    }
+
+    private int identifierConstant(String name) {
+        return makeConstant(name);
+    }
+
+    private int globalSlot(String name) {
+        int slot = vm.globalSlot(name);
+        if (slot > MAX_SHORT) {
+            Lox.error(line, "Too many global variables.");
+            return 0;
+        }
+        return slot;
+    }
+}
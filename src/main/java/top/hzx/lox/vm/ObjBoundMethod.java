@@ -0,0 +1,21 @@
+package top.hzx.lox.vm;
+
+/**
+ * 作为值使用的方法，记住了它的接收者
+ */
+class ObjBoundMethod {
+
+    final Object receiver;
+
+    final ObjClosure method;
+
+    ObjBoundMethod(Object receiver, ObjClosure method) {
+        this.receiver = receiver;
+        this.method = method;
+    }
+
+    @Override
+    public String toString() {
+        return method.toString();
+    }
+}
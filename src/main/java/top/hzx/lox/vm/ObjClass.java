@@ -0,0 +1,25 @@
+package top.hzx.lox.vm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class ObjClass {
+
+    final String name;
+
+    final Map<String, ObjClosure> methods = new HashMap<>();
+
+    /**
+     * init 方法，避免每次实例化都查找方法表
+     */
+    ObjClosure initializer;
+
+    ObjClass(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,21 @@
+package top.hzx.lox.vm;
+
+/**
+ * 运行时的函数对象：函数加上它捕获的上值
+ */
+class ObjClosure {
+
+    final ObjFunction function;
+
+    final ObjUpvalue[] upvalues;
+
+    ObjClosure(ObjFunction function) {
+        this.function = function;
+        this.upvalues = new ObjUpvalue[function.getUpvalueCount()];
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+}
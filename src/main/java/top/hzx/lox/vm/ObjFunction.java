@@ -0,0 +1,45 @@
+package top.hzx.lox.vm;
+
+import lombok.Getter;
+
+/**
+ * 编译后的函数
+ */
+@Getter
+public class ObjFunction {
+
+    private final String name;
+
+    private final int arity;
+
+    private final Chunk chunk = new Chunk();
+
+    /**
+     * 捕获的上值个数
+     */
+    private int upvalueCount = 0;
+
+    /**
+     * 执行时需要的最大栈深度（含局部变量）
+     */
+    private int maxStack = 1;
+
+    public ObjFunction(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    void setUpvalueCount(int upvalueCount) {
+        this.upvalueCount = upvalueCount;
+    }
+
+    void setMaxStack(int maxStack) {
+        this.maxStack = maxStack;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) return "<script>";
+        return "<fn " + name + ">";
+    }
+}
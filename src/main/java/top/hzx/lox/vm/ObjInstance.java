@@ -0,0 +1,20 @@
+package top.hzx.lox.vm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class ObjInstance {
+
+    final ObjClass klass;
+
+    final Map<String, Object> fields = new HashMap<>();
+
+    ObjInstance(ObjClass klass) {
+        this.klass = klass;
+    }
+
+    @Override
+    public String toString() {
+        return klass.name + " instance";
+    }
+}
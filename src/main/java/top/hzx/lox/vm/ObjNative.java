@@ -0,0 +1,30 @@
+package top.hzx.lox.vm;
+
+/**
+ * 本地函数
+ */
+abstract class ObjNative {
+
+    final String name;
+
+    final int arity;
+
+    ObjNative(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    /**
+     * 调用本地函数
+     *
+     * @param args  虚拟机栈
+     * @param start 第一个参数在栈中的下标
+     * @return 返回值
+     */
+    abstract Object call(Object[] args, int start);
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
@@ -0,0 +1,24 @@
+package top.hzx.lox.vm;
+
+/**
+ * 闭包捕获的变量
+ * <p>变量仍在栈上时为 open 状态，通过栈下标访问；离开作用域后关闭，值移入 closed 字段</p>
+ */
+class ObjUpvalue {
+
+    /**
+     * 栈下标，关闭后为 -1
+     */
+    int slot;
+
+    Object closed;
+
+    /**
+     * 按栈下标从大到小排列的 open 上值链表
+     */
+    ObjUpvalue next;
+
+    ObjUpvalue(int slot) {
+        this.slot = slot;
+    }
+}
@@ -0,0 +1,116 @@
+package top.hzx.lox.vm;
+
+/**
+ * 字节码指令
+ * <p>操作数紧跟在指令之后：常量下标、全局变量下标、跳转偏移为 2 字节（大端），局部变量槽位、上值下标、参数个数为 1 字节</p>
+ */
+public final class OpCode {
+
+    /**
+     * [常量下标] 将常量压栈
+     */
+    public static final byte CONSTANT = 0;
+    public static final byte NIL = 1;
+    public static final byte TRUE = 2;
+    public static final byte FALSE = 3;
+    public static final byte POP = 4;
+    /**
+     * [槽位] 读写当前调用帧中的局部变量
+     */
+    public static final byte GET_LOCAL = 5;
+    public static final byte SET_LOCAL = 6;
+    /**
+     * [全局变量下标] 读写全局变量，下标由虚拟机统一分配，与常量池无关
+     */
+    public static final byte GET_GLOBAL = 7;
+    public static final byte DEFINE_GLOBAL = 8;
+    public static final byte SET_GLOBAL = 9;
+    /**
+     * [上值下标] 读写闭包捕获的变量
+     */
+    public static final byte GET_UPVALUE = 10;
+    public static final byte SET_UPVALUE = 11;
+    /**
+     * [名字常量下标] 读写实例属性
+     */
+    public static final byte GET_PROPERTY = 12;
+    public static final byte SET_PROPERTY = 13;
+    /**
+     * [名字常量下标] 以栈顶的 this 绑定父类方法
+     */
+    public static final byte GET_SUPER = 14;
+    public static final byte EQUAL = 15;
+    public static final byte GREATER = 16;
+    public static final byte GREATER_EQUAL = 17;
+    public static final byte LESS = 18;
+    public static final byte LESS_EQUAL = 19;
+    public static final byte ADD = 20;
+    public static final byte SUBTRACT = 21;
+    public static final byte MULTIPLY = 22;
+    public static final byte DIVIDE = 23;
+    public static final byte NOT = 24;
+    public static final byte NEGATE = 25;
+    public static final byte PRINT = 26;
+    /**
+     * [偏移] 向前跳转
+     */
+    public static final byte JUMP = 27;
+    /**
+     * [偏移] 栈顶为假时向前跳转，不弹出栈顶
+     */
+    public static final byte JUMP_IF_FALSE = 28;
+    /**
+     * [偏移] 向后跳转到循环开始处
+     */
+    public static final byte LOOP = 29;
+    /**
+     * [参数个数] 调用函数
+     */
+    public static final byte CALL = 30;
+    /**
+     * [名字常量下标][参数个数] 直接调用实例方法，不创建绑定方法
+     */
+    public static final byte INVOKE = 31;
+    /**
+     * [名字常量下标][参数个数] 直接调用父类方法
+     */
+    public static final byte SUPER_INVOKE = 32;
+    /**
+     * [函数常量下标] 后跟 upvalueCount 对 [是否为局部变量][下标]
+     */
+    public static final byte CLOSURE = 33;
+    /**
+     * 将栈顶被捕获的局部变量移入上值并弹出
+     */
+    public static final byte CLOSE_UPVALUE = 34;
+    public static final byte RETURN = 35;
+    /**
+     * [名字常量下标] 创建类
+     */
+    public static final byte CLASS = 36;
+    /**
+     * 将父类的方法复制到子类中
+     */
+    public static final byte INHERIT = 37;
+    /**
+     * [名字常量下标] 将栈顶的闭包定义为类的方法
+     */
+    public static final byte METHOD = 38;
+
+    private static final String[] NAMES = {
+            "CONSTANT", "NIL", "TRUE", "FALSE", "POP",
+            "GET_LOCAL", "SET_LOCAL", "GET_GLOBAL", "DEFINE_GLOBAL", "SET_GLOBAL",
+            "GET_UPVALUE", "SET_UPVALUE", "GET_PROPERTY", "SET_PROPERTY", "GET_SUPER",
+            "EQUAL", "GREATER", "GREATER_EQUAL", "LESS", "LESS_EQUAL",
+            "ADD", "SUBTRACT", "MULTIPLY", "DIVIDE", "NOT", "NEGATE", "PRINT",
+            "JUMP", "JUMP_IF_FALSE", "LOOP", "CALL", "INVOKE", "SUPER_INVOKE",
+            "CLOSURE", "CLOSE_UPVALUE", "RETURN", "CLASS", "INHERIT", "METHOD",
+    };
+
+    private OpCode() {
+    }
+
+    public static String name(byte op) {
+        return op >= 0 && op < NAMES.length ? NAMES[op] : "UNKNOWN(" + op + ")";
+    }
+}
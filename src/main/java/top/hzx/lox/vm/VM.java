@@ -0,0 +1,612 @@
+package top.hzx.lox.vm;
+
+import top.hzx.lox.Lox;
+import top.hzx.lox.err.RuntimeError;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 基于栈的字节码虚拟机
+ */
+public class VM {
+
+    private static final int FRAMES_MAX = 1 << 14;
+
+    /**
+     * 调用帧
+     */
+    private static class CallFrame {
+        private ObjClosure closure;
+        /**
+         * 下一条待执行指令的位置
+         */
+        private int ip;
+        /**
+         * 槽位 0 在栈中的下标
+         */
+        private int base;
+    }
+
+    private Object[] stack = new Object[1024];
+
+    private int sp = 0;
+
+    private CallFrame[] frames = new CallFrame[64];
+
+    private int frameCount = 0;
+
+    /**
+     * 仍指向栈上变量的上值，按栈下标从大到小排列
+     */
+    private ObjUpvalue openUpvalues;
+
+    /**
+     * 尚未定义的全局变量的值
+     */
+    private static final Object UNDEFINED = new Object();
+
+    /**
+     * 全局变量名到下标的映射，整个虚拟机共用，不占用各个函数的常量池
+     */
+    private final Map<String, Integer> globalSlots = new HashMap<>();
+
+    private String[] globalNames = new String[64];
+
+    private Object[] globals = new Object[64];
+
+    public VM() {
+        Arrays.fill(globals, UNDEFINED);
+        globals[globalSlot("clock")] = new ObjNative("clock", 0) {
+            @Override
+            Object call(Object[] args, int start) {
+                return (double) System.currentTimeMillis() / 1000.0;
+            }
+        };
+    }
+
+    /**
+     * 全局变量的下标，第一次出现的名字分配新的下标
+     *
+     * @param name 全局变量名
+     * @return 下标，由 GET_GLOBAL、DEFINE_GLOBAL、SET_GLOBAL 的操作数引用
+     */
+    int globalSlot(String name) {
+        Integer slot = globalSlots.get(name);
+        if (slot != null) return slot;
+        int index = globalSlots.size();
+        if (index == globals.length) {
+            globalNames = Arrays.copyOf(globalNames, index * 2);
+            globals = Arrays.copyOf(globals, index * 2);
+            Arrays.fill(globals, index, index * 2, UNDEFINED);
+        }
+        globalNames[index] = name;
+        globalSlots.put(name, index);
+        return index;
+    }
+
+    public void interpret(ObjFunction script) {
+        try {
+            ObjClosure closure = new ObjClosure(script);
+            stack[sp++] = closure;
+            callClosure(closure, 0);
+            run();
+        } catch (RuntimeError e) {
+            Lox.runtimeError(e);
+            resetStack();
+        }
+    }
+
+    private void resetStack() {
+        Arrays.fill(stack, 0, sp, null);
+        sp = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.getChunk().getCode();
+        Object[] constants = frame.closure.function.getChunk().getConstants();
+        Object[] stack = this.stack;
+        int ip = frame.ip;
+        int base = frame.base;
+        int sp = this.sp;
+
+        for (; ; ) {
+            byte op = code[ip++];
+            switch (op) {
+                case OpCode.CONSTANT:
+                    stack[sp++] = constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    break;
+                case OpCode.NIL:
+                    stack[sp++] = null;
+                    break;
+                case OpCode.TRUE:
+                    stack[sp++] = Boolean.TRUE;
+                    break;
+                case OpCode.FALSE:
+                    stack[sp++] = Boolean.FALSE;
+                    break;
+                case OpCode.POP:
+                    stack[--sp] = null;
+                    break;
+                case OpCode.GET_LOCAL:
+                    stack[sp++] = stack[base + (code[ip++] & 0xff)];
+                    break;
+                case OpCode.SET_LOCAL:
+                    stack[base + (code[ip++] & 0xff)] = stack[sp - 1];
+                    break;
+                case OpCode.GET_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    Object value = globals[slot];
+                    if (value == UNDEFINED) {
+                        frame.ip = ip;
+                        throw error("Undefined variable '" + globalNames[slot] + "'.");
+                    }
+                    stack[sp++] = value;
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    globals[slot] = stack[--sp];
+                    stack[sp] = null;
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (globals[slot] == UNDEFINED) {
+                        frame.ip = ip;
+                        throw error("Undefined variable '" + globalNames[slot] + "'.");
+                    }
+                    globals[slot] = stack[sp - 1];
+                    break;
+                }
+                case OpCode.GET_UPVALUE: {
+                    ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    stack[sp++] = upvalue.slot >= 0 ? stack[upvalue.slot] : upvalue.closed;
+                    break;
+                }
+                case OpCode.SET_UPVALUE: {
+                    ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    if (upvalue.slot >= 0) {
+                        stack[upvalue.slot] = stack[sp - 1];
+                    } else {
+                        upvalue.closed = stack[sp - 1];
+                    }
+                    break;
+                }
+                case OpCode.GET_PROPERTY: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    Object receiver = stack[sp - 1];
+                    if (!(receiver instanceof ObjInstance)) {
+                        frame.ip = ip;
+                        throw error("Only instances have properties.");
+                    }
+                    ObjInstance instance = (ObjInstance) receiver;
+                    Object value = instance.fields.get(name);
+                    if (value != null || instance.fields.containsKey(name)) {
+                        stack[sp - 1] = value;
+                        break;
+                    }
+                    frame.ip = ip;
+                    stack[sp - 1] = bindMethod(instance, instance.klass, name);
+                    break;
+                }
+                case OpCode.SET_PROPERTY: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    Object receiver = stack[sp - 2];
+                    if (!(receiver instanceof ObjInstance)) {
+                        frame.ip = ip;
+                        throw error("Only instances have fields.");
+                    }
+                    Object value = stack[--sp];
+                    ((ObjInstance) receiver).fields.put(name, value);
+                    stack[sp] = null;
+                    stack[sp - 1] = value;
+                    break;
+                }
+                case OpCode.GET_SUPER: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    ObjClass superclass = (ObjClass) stack[--sp];
+                    stack[sp] = null;
+                    frame.ip = ip;
+                    stack[sp - 1] = bindMethod(stack[sp - 1], superclass, name);
+                    break;
+                }
+                case OpCode.EQUAL: {
+                    Object b = stack[--sp];
+                    stack[sp] = null;
+                    stack[sp - 1] = isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case OpCode.GREATER: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    stack[sp] = null;
+                    if (!(a instanceof Double) || !(b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operand must be a number.");
+                    }
+                    stack[sp - 1] = (Double) a > (Double) b;
+                    break;
+                }
+                case OpCode.GREATER_EQUAL: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    stack[sp] = null;
+                    if (!(a instanceof Double) || !(b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operand must be a number.");
+                    }
+                    stack[sp - 1] = (Double) a >= (Double) b;
+                    break;
+                }
+                case OpCode.LESS: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    stack[sp] = null;
+                    if (!(a instanceof Double) || !(b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operand must be a number.");
+                    }
+                    stack[sp - 1] = (Double) a < (Double) b;
+                    break;
+                }
+                case OpCode.LESS_EQUAL: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    stack[sp] = null;
+                    if (!(a instanceof Double) || !(b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operand must be a number.");
+                    }
+                    stack[sp - 1] = (Double) a <= (Double) b;
+                    break;
+                }
+                case OpCode.SUBTRACT: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    stack[sp] = null;
+                    if (!(a instanceof Double) || !(b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operand must be a number.");
+                    }
+                    stack[sp - 1] = (Double) a - (Double) b;
+                    break;
+                }
+                case OpCode.MULTIPLY: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    stack[sp] = null;
+                    if (!(a instanceof Double) || !(b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operand must be a number.");
+                    }
+                    stack[sp - 1] = (Double) a * (Double) b;
+                    break;
+                }
+                case OpCode.DIVIDE: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    stack[sp] = null;
+                    if (!(a instanceof Double) || !(b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operand must be a number.");
+                    }
+                    stack[sp - 1] = (Double) a / (Double) b;
+                    break;
+                }
+                case OpCode.ADD: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    stack[sp] = null;
+                    if (a instanceof Double && b instanceof Double) {
+                        stack[sp - 1] = (Double) a + (Double) b;
+                    } else if (a instanceof String && b instanceof String) {
+                        stack[sp - 1] = a + (String) b;
+                    } else {
+                        frame.ip = ip;
+                        throw error("Operands must be two numbers or two strings.");
+                    }
+                    break;
+                }
+                case OpCode.NOT:
+                    stack[sp - 1] = !isTruthy(stack[sp - 1]);
+                    break;
+                case OpCode.NEGATE: {
+                    Object value = stack[sp - 1];
+                    if (!(value instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operand must be a number.");
+                    }
+                    stack[sp - 1] = -(Double) value;
+                    break;
+                }
+                case OpCode.PRINT:
+                    System.out.println(stringify(stack[--sp]));
+                    stack[sp] = null;
+                    break;
+                case OpCode.JUMP:
+                    ip += ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    break;
+                case OpCode.JUMP_IF_FALSE:
+                    if (isTruthy(stack[sp - 1])) {
+                        ip += 2;
+                    } else {
+                        ip += ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                    }
+                    break;
+                case OpCode.LOOP:
+                    ip -= ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    break;
+                case OpCode.CALL:
+                case OpCode.INVOKE:
+                case OpCode.SUPER_INVOKE: {
+                    String name = null;
+                    if (op != OpCode.CALL) {
+                        name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                    }
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    this.sp = sp;
+                    if (op == OpCode.CALL) {
+                        callValue(stack[sp - argCount - 1], argCount);
+                    } else if (op == OpCode.INVOKE) {
+                        invoke(name, argCount);
+                    } else {
+                        ObjClass superclass = (ObjClass) stack[--this.sp];
+                        stack[this.sp] = null;
+                        invokeFromClass(superclass, name, argCount);
+                    }
+                    // 调用可能压入了新的调用帧，也可能扩容了栈
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.getChunk().getCode();
+                    constants = frame.closure.function.getChunk().getConstants();
+                    stack = this.stack;
+                    ip = frame.ip;
+                    base = frame.base;
+                    sp = this.sp;
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    ObjFunction function = (ObjFunction) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    ObjClosure closure = new ObjClosure(function);
+                    stack[sp++] = closure;
+                    for (int i = 0; i < closure.upvalues.length; i++) {
+                        boolean isLocal = code[ip++] == 1;
+                        int index = code[ip++] & 0xff;
+                        if (isLocal) {
+                            closure.upvalues[i] = captureUpvalue(base + index);
+                        } else {
+                            closure.upvalues[i] = frame.closure.upvalues[index];
+                        }
+                    }
+                    break;
+                }
+                case OpCode.CLOSE_UPVALUE:
+                    closeUpvalues(sp - 1);
+                    stack[--sp] = null;
+                    break;
+                case OpCode.RETURN: {
+                    Object result = stack[--sp];
+                    closeUpvalues(base);
+                    Arrays.fill(stack, base, sp + 1, null);
+                    frameCount--;
+                    if (frameCount == 0) {
+                        this.sp = 0;
+                        return;
+                    }
+                    sp = base;
+                    stack[sp++] = result;
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.getChunk().getCode();
+                    constants = frame.closure.function.getChunk().getConstants();
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.CLASS:
+                    stack[sp++] = new ObjClass((String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)]);
+                    ip += 2;
+                    break;
+                case OpCode.INHERIT: {
+                    Object superclass = stack[sp - 2];
+                    if (!(superclass instanceof ObjClass)) {
+                        frame.ip = ip;
+                        throw error("Superclass must be a class.");
+                    }
+                    ObjClass subclass = (ObjClass) stack[--sp];
+                    stack[sp] = null;
+                    // 继承时复制父类的方法表，调用时无需沿继承链查找
+                    subclass.methods.putAll(((ObjClass) superclass).methods);
+                    subclass.initializer = ((ObjClass) superclass).initializer;
+                    break;
+                }
+                case OpCode.METHOD: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    ObjClosure method = (ObjClosure) stack[--sp];
+                    stack[sp] = null;
+                    ObjClass klass = (ObjClass) stack[sp - 1];
+                    klass.methods.put(name, method);
+                    if (name.equals("init")) {
+                        klass.initializer = method;
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + OpCode.name(op));
+            }
+        }
+    }
+
+    private void callValue(Object callee, int argCount) {
+        if (callee instanceof ObjClosure) {
+            callClosure((ObjClosure) callee, argCount);
+        } else if (callee instanceof ObjBoundMethod) {
+            ObjBoundMethod bound = (ObjBoundMethod) callee;
+            stack[sp - argCount - 1] = bound.receiver;
+            callClosure(bound.method, argCount);
+        } else if (callee instanceof ObjClass) {
+            ObjClass klass = (ObjClass) callee;
+            stack[sp - argCount - 1] = new ObjInstance(klass);
+            if (klass.initializer != null) {
+                callClosure(klass.initializer, argCount);
+            } else if (argCount != 0) {
+                throw error("Expected 0 arguments but got " + argCount + ".");
+            }
+        } else if (callee instanceof ObjNative) {
+            ObjNative function = (ObjNative) callee;
+            if (argCount != function.arity) {
+                throw error("Expected " + function.arity + " arguments but got " + argCount + ".");
+            }
+            Object result = function.call(stack, sp - argCount);
+            Arrays.fill(stack, sp - argCount, sp, null);
+            sp -= argCount;
+            stack[sp - 1] = result;
+        } else {
+            throw error("Can only call functions and classes.");
+        }
+    }
+
+    private void invoke(String name, int argCount) {
+        Object receiver = stack[sp - argCount - 1];
+        if (!(receiver instanceof ObjInstance)) {
+            throw error("Only instances have properties.");
+        }
+        ObjInstance instance = (ObjInstance) receiver;
+        Object value = instance.fields.get(name);
+        if (value != null || instance.fields.containsKey(name)) {
+            // 字段优先于方法
+            stack[sp - argCount - 1] = value;
+            callValue(value, argCount);
+            return;
+        }
+        invokeFromClass(instance.klass, name, argCount);
+    }
+
+    private void invokeFromClass(ObjClass klass, String name, int argCount) {
+        ObjClosure method = klass.methods.get(name);
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        callClosure(method, argCount);
+    }
+
+    private ObjBoundMethod bindMethod(Object receiver, ObjClass klass, String name) {
+        ObjClosure method = klass.methods.get(name);
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        return new ObjBoundMethod(receiver, method);
+    }
+
+    private void callClosure(ObjClosure closure, int argCount) {
+        ObjFunction function = closure.function;
+        if (argCount != function.getArity()) {
+            throw error("Expected " + function.getArity() + " arguments but got " + argCount + ".");
+        }
+        if (frameCount == frames.length) {
+            if (frameCount == FRAMES_MAX) {
+                throw error("Stack overflow.");
+            }
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        int base = sp - argCount - 1;
+        if (base + function.getMaxStack() > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, base + function.getMaxStack()));
+        }
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frameCount++;
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = base;
+    }
+
+    private ObjUpvalue captureUpvalue(int slot) {
+        ObjUpvalue previous = null;
+        ObjUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+        ObjUpvalue created = new ObjUpvalue(slot);
+        created.next = upvalue;
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    /**
+     * 关闭所有指向 last 及其之上栈槽位的上值
+     *
+     * @param last 栈下标
+     */
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            ObjUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.slot = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    /**
+     * 创建运行时错误，行号取自当前调用帧最近执行的指令
+     *
+     * @param message 错误信息
+     * @return 运行时错误
+     */
+    private RuntimeError error(String message) {
+        CallFrame frame = frames[frameCount - 1];
+        int line = frame.closure.function.getChunk().getLine(frame.ip - 1);
+        return new RuntimeError(line, message);
+    }
+
+    private static boolean isTruthy(Object object) {
+        if (object == null) return false;
+        if (object instanceof Boolean) return (boolean) object;
+        return true;
+    }
+
+    private static boolean isEqual(Object left, Object right) {
+        if (left == null && right == null) return true;
+        if (left == null) return false;
+        return left.equals(right);
+    }
+
+    private static String stringify(Object object) {
+        if (object == null) return "nil";
+        if (object instanceof Double) {
+            String text = object.toString();
+            if (text.endsWith(".0")) {
+                text = text.substring(0, text.length() - 2);
+            }
+            return text;
+        }
+        return object.toString();
+    }
+}
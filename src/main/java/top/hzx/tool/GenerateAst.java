@@ -3,6 +3,7 @@ package top.hzx.tool;
 import java.io.PrintWriter;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 
 public class GenerateAst {
 
@@ -12,36 +13,54 @@ public class GenerateAst {
             System.exit(64);
         }
         String outputDir = args[0];
-        defineAst(outputDir, "Expr", Arrays.asList(
+        defineAst(outputDir, "Expr", "Evaluator evaluator", Arrays.asList(
                 "Literal    : Object value",
                 "Logical    : Expr left, Token operator, Expr right",
-                "Set        : Expr object, Token name, Expr value",
-                "Super      : Token keyword, Token method",
-                "This       : Token keyword",
+                "Set        : Expr object, Token name, Expr value" +
+                            " | Shape shape, int offset, Shape transition",
+                "Super      : Token keyword, Token method" +
+                            " | int depth = -1, LoxClass superclass, LoxFunction target",
+                "This       : Token keyword | int depth = -1, int slot",
                 "Unary      : Token operator, Expr right",
-                "Assign     : Token name, Expr value",
-                "Binary     : Expr left, Token operator, Expr right",
-                "Call       : Expr callee, Token paren, List<Expr> arguments",
-                "Get        : Expr object, Token name",
+                "Assign     : Token name, Expr value | int depth = -1, int slot, GlobalCell cell",
+                "Binary     : Expr left, Token operator, Expr right" +
+                            " | BinaryNode node = new BinaryNode.Uninitialized(this)",
+                "Call       : Expr callee, Token paren, List<Expr> arguments" +
+                            " | CallNode node = new CallNode.Uninitialized(this)",
+                "Get        : Expr object, Token name" +
+                            " | Shape shape, int offset, LoxClass klass, LoxFunction method",
                 "Grouping   : Expr expression",
-                "Variable   : Token name"
+                "Variable   : Token name | int depth = -1, int slot, GlobalCell cell",
+                // 以下是 Superinstructions 在 Resolver 之后合并出的节点，保留原节点用于退化和报错
+                "Increment  : Expr.Assign assign, Expr.Variable variable, Expr.Binary binary, double operand",
+                "Compare    : Expr.Binary binary, Expr.Variable left, Expr.Variable right, Object constant",
+                "ThisGet    : Expr.Get get, Expr.This receiver"
         ));
-        defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
-                "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+        defineAst(outputDir, "Stmt", null, Arrays.asList(
+                "Block      : List<Stmt> statements | boolean merged, int scopeSize",
+                "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods" +
+                            " | int slot = -1",
                 "Expression : Expr expression",
+                "For        : Token keyword, Stmt initializer, Expr condition, Expr increment," +
+                            " Stmt body | boolean merged, int scopeSize, long iterations",
                 "Function   : Token name, List<Token> params," +
-                            " List<Stmt> body",
+                            " List<Stmt> body | LazyBody lazyBody, int slot = -1, int scopeSize, boolean frameEscapes," +
+                            " Executor compiledBody",
                 "If         : Expr condition, Stmt thenBranch," +
                             " Stmt elseBranch",
                 "Print      : Expr expression",
                 "Return     : Token keyword, Expr value",
-                "Var        : Token name, Expr initializer",
-                "While      : Expr condition, Stmt body"
+                "Var        : Token name, Expr initializer | int slot = -1",
+                "While      : Expr condition, Stmt body",
+                "PrintVariable : Expr.Variable variable"
         ));
     }
 
-    private static void defineAst(String outputDir, String baseName, List<String> types) throws Exception {
+    /**
+     * @param cacheFields 基类中供执行时缓存数据的可变字段，没有时为null
+     */
+    private static void defineAst(String outputDir, String baseName, String cacheFields, List<String> types)
+            throws Exception {
         String path = outputDir + "/" + baseName + ".java";
         PrintWriter writer = new PrintWriter(path, "UTF-8");
         writer.println("package top.hzx.lox.ast;");
@@ -49,6 +68,8 @@ public class GenerateAst {
         writer.println("import java.util.List;");
         writer.println();
         writer.println("import lombok.Getter;");
+        writer.println("import lombok.Setter;");
+        writer.println("import top.hzx.lox.env.GlobalCell;");
         writer.println("import top.hzx.lox.token.Token;");
         writer.println();
         writer.println("@SuppressWarnings(\"unused\")");
@@ -57,12 +78,20 @@ public class GenerateAst {
         // 生成 Visitor 接口
         defineVisitor(writer, baseName, types);
         writer.println();
+        // 生成节点种类和缓存字段
+        defineKind(writer, types);
+        writer.println();
+        defineBaseFields(writer, baseName, cacheFields);
+        writer.println();
         // 生成 Ast 子类开始
         for (String type : types) {
             String[] split = type.split(":");
             String className = split[0].trim();
-            String fields = split[1].trim();
-            defineType(writer, baseName, className, fields);
+            // "|" 之后的是由 Resolver 回填的可变字段
+            String[] parts = split[1].split("\\|");
+            String fields = parts[0].trim();
+            String mutableFields = parts.length > 1 ? parts[1].trim() : null;
+            defineType(writer, baseName, className, fields, mutableFields);
             writer.println();
         }
         // 基类生成 accept 方法
@@ -73,7 +102,8 @@ public class GenerateAst {
         writer.close();
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fields) {
+    private static void defineType(PrintWriter writer, String baseName, String className, String fields,
+                                   String mutableFields) {
         writer.println("    @Getter");
         writer.println("    public static class " + className + " extends " + baseName + " {");
         writer.println();
@@ -82,9 +112,16 @@ public class GenerateAst {
         for (String field : fieldList) {
             writer.println("        private final " + field + ";");
         }
+        if (mutableFields != null) {
+            for (String field : mutableFields.split(", ")) {
+                writer.println("        @Setter");
+                writer.println("        private " + field + ";");
+            }
+        }
         writer.println();
         // 构造函数
         writer.println("        public " + className + "(" + fields + ") {");
+        writer.println("            super(Kind." + kindName(className) + ");");
         for (String field : fieldList) {
             String name = field.split(" ")[1];
             writer.println("            this." + name + " = " + name + ";");
@@ -99,6 +136,50 @@ public class GenerateAst {
         // 访问者模式
     }
 
+    /**
+     * 生成节点种类的枚举，顺序与子类列表相同
+     */
+    private static void defineKind(PrintWriter writer, List<String> types) {
+        writer.println("    /**");
+        writer.println("     * 节点种类，与子类一一对应，可以用 switch 代替 accept 分派");
+        writer.println("     */");
+        writer.println("    public enum Kind {");
+        for (String type : types) {
+            writer.println("        " + kindName(type.split(":")[0].trim()) + ",");
+        }
+        writer.println("    }");
+    }
+
+    /**
+     * 生成基类的字段和构造函数
+     */
+    private static void defineBaseFields(PrintWriter writer, String baseName, String cacheFields) {
+        writer.println("    @Getter");
+        writer.println("    private final Kind kind;");
+        writer.println();
+        if (cacheFields != null) {
+            writer.println("    /**");
+            writer.println("     * 执行时缓存在节点上的数据");
+            writer.println("     */");
+            for (String field : cacheFields.split(", ")) {
+                writer.println("    @Getter");
+                writer.println("    @Setter");
+                writer.println("    private " + field + ";");
+            }
+            writer.println();
+        }
+        writer.println("    protected " + baseName + "(Kind kind) {");
+        writer.println("        this.kind = kind;");
+        writer.println("    }");
+    }
+
+    /**
+     * 类名转为枚举常量名，如 ThisGet 转为 THIS_GET
+     */
+    private static String kindName(String className) {
+        return className.replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase(Locale.ROOT);
+    }
+
     /**
      * 生成 Visitor 接口
      *
@@ -0,0 +1,148 @@
+package top.hzx.tool;
+
+import top.hzx.lox.ast.Expr;
+import top.hzx.lox.ast.Resolver;
+import top.hzx.lox.ast.Stmt;
+import top.hzx.lox.ast.Superinstructions;
+import top.hzx.lox.opt.Pass;
+import top.hzx.lox.parser.Parser;
+import top.hzx.lox.scanner.Scanner;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 统计一批脚本中节点组合的出现次数，用于挑选 {@link Superinstructions} 合并的模式
+ * <p>每个节点和它的直接子表达式记为一种组合，如 {@code Assign(Binary+)}，分别统计总次数和在循环中的次数</p>
+ */
+public class IdiomReport extends Pass {
+
+    private static final int TOP = 25;
+
+    private final Map<String, int[]> counts = new HashMap<>();
+
+    /**
+     * 正在遍历的节点的子表达式
+     */
+    private final Deque<List<String>> children = new ArrayDeque<>();
+
+    private int loopDepth = 0;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: idiom_report <script or directory>...");
+            System.exit(64);
+        }
+        IdiomReport report = new IdiomReport();
+        Superinstructions superinstructions = new Superinstructions();
+        for (String arg : args) {
+            for (Path file : scripts(Paths.get(arg))) {
+                String source = new String(Files.readAllBytes(file), Charset.defaultCharset());
+                List<Stmt> stmts = new Parser(new Scanner(source)).parse();
+                new Resolver().resolve(stmts);
+                report.run(stmts);
+                superinstructions.fuse(stmts);
+            }
+        }
+        report.print();
+        superinstructions.report(System.out);
+    }
+
+    private static List<Path> scripts(Path path) throws IOException {
+        if (!Files.isDirectory(path)) return Collections.singletonList(path);
+        try (Stream<Path> files = Files.list(path)) {
+            return files.filter(file -> file.toString().endsWith(".lox")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "idiom-report";
+    }
+
+    private void print() {
+        System.out.println("== idioms ==");
+        System.out.printf("%-40s %8s %8s%n", "shape", "total", "in loop");
+        counts.entrySet().stream()
+                .sorted((a, b) -> a.getValue()[1] != b.getValue()[1]
+                        ? Integer.compare(b.getValue()[1], a.getValue()[1])
+                        : Integer.compare(b.getValue()[0], a.getValue()[0]))
+                .limit(TOP)
+                .forEach(entry -> System.out.printf("%-40s %8d %8d%n",
+                        entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+    }
+
+    private void count(String shape) {
+        int[] count = counts.computeIfAbsent(shape, key -> new int[2]);
+        count[0]++;
+        if (loopDepth > 0) count[1]++;
+    }
+
+    private static String label(Expr expr) {
+        String name = expr.getClass().getSimpleName();
+        if (expr instanceof Expr.Binary) return name + ((Expr.Binary) expr).getOperator().getLexeme();
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) expr).getValue();
+            return name + (value == null ? " nil" : " " + value.getClass().getSimpleName());
+        }
+        return name;
+    }
+
+    /**
+     * 记录节点和它的直接子表达式
+     */
+    private void record(String label, Runnable visit) {
+        children.push(new ArrayList<>());
+        visit.run();
+        List<String> kids = children.pop();
+        if (!kids.isEmpty()) count(label + "(" + String.join(", ", kids) + ")");
+    }
+
+    @Override
+    protected Expr rewrite(Expr expr) {
+        if (expr == null) return null;
+        String label = label(expr);
+        if (!children.isEmpty()) children.peek().add(label);
+        record(label, () -> super.rewrite(expr));
+        return expr;
+    }
+
+    @Override
+    protected Stmt rewrite(Stmt stmt) {
+        // 语句只记录子表达式，嵌套的语句各自开始新的组合
+        record(stmt.getClass().getSimpleName(), () -> super.rewrite(stmt));
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        loopDepth++;
+        try {
+            return super.visitForStmt(stmt);
+        } finally {
+            loopDepth--;
+        }
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        loopDepth++;
+        try {
+            return super.visitWhileStmt(stmt);
+        } finally {
+            loopDepth--;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package top.hzx.lox;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 运行生成的大脚本，覆盖手写脚本达不到的规模：虚拟机的全局变量表和大文件的流水线扫描
+ */
+public class GeneratedScriptTest {
+
+    private static final List<List<String>> BACKENDS = Arrays.asList(
+            Collections.emptyList(),
+            Collections.singletonList("--vm"),
+            Collections.singletonList("--closures")
+    );
+
+    /**
+     * 超过单个常量表的容量
+     */
+    private static final int GLOBALS = 40000;
+
+    /**
+     * 生成的文件超过 1 MB，按 {@link Lox} 的阈值使用流水线扫描
+     */
+    private static final int BLOCKS = 40000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void manyGlobals() throws IOException, InterruptedException {
+        Path script = temporaryFolder.newFile("globals.lox").toPath();
+        try (BufferedWriter writer = Files.newBufferedWriter(script, Charset.defaultCharset())) {
+            for (int i = 0; i < GLOBALS; i++) {
+                writer.write("var g" + i + " = " + i + ";\n");
+            }
+            writer.write("fun last() { return g" + (GLOBALS - 1) + "; }\n");
+            writer.write("g0 = g0 + 1;\n");
+            writer.write("print g0 + last();\n");
+        }
+        for (List<String> backend : BACKENDS) {
+            LoxProcess result = LoxProcess.run(script, backend);
+            assertEquals(backend + " output", GLOBALS + "\n", result.output);
+            assertEquals(backend + " exit code", 0, result.exitCode);
+        }
+    }
+
+    @Test
+    public void largeFile() throws IOException, InterruptedException {
+        Path script = temporaryFolder.newFile("large.lox").toPath();
+        try (BufferedWriter writer = Files.newBufferedWriter(script, Charset.defaultCharset())) {
+            writer.write("var total = 0;\n");
+            for (int i = 0; i < BLOCKS; i++) {
+                writer.write("{ var x = " + i + "; total = total + x; } // padding to push the file past the threshold\n");
+            }
+            // 大数会按科学计数法打印，在脚本中比较
+            writer.write("print total == " + (long) BLOCKS * (BLOCKS - 1) / 2 + ";\n");
+        }
+        for (List<String> backend : BACKENDS) {
+            LoxProcess result = LoxProcess.run(script, backend);
+            assertEquals(backend + " output", "true\n", result.output);
+            assertEquals(backend + " exit code", 0, result.exitCode);
+        }
+    }
+
+    @Test
+    public void largeFileScanError() throws IOException, InterruptedException {
+        Path script = temporaryFolder.newFile("error.lox").toPath();
+        try (BufferedWriter writer = Files.newBufferedWriter(script, Charset.defaultCharset())) {
+            for (int i = 0; i < BLOCKS; i++) {
+                writer.write("{ var x = " + i + "; } // padding to push the file past the threshold\n");
+            }
+            writer.write("@\n");
+        }
+        for (List<String> backend : BACKENDS) {
+            LoxProcess result = LoxProcess.run(script, backend);
+            assertEquals(backend + " output", "[line " + (BLOCKS + 1) + "] Error: Unexpected character.\n", result.output);
+            assertEquals(backend + " exit code", 65, result.exitCode);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package top.hzx.lox;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 用每种执行方式运行 golden 目录下的脚本，输出必须与同名的 .out 文件完全相同
+ * <p>脚本第一行可以写 {@code // exit: N} 指定期望的退出码，默认为 0。
+ * .out 文件包含合并后的标准输出和标准错误，错误信息也要一致</p>
+ */
+@RunWith(Parameterized.class)
+public class GoldenTest {
+
+    private static final String GOLDEN = "/golden";
+
+    private static final Pattern EXIT = Pattern.compile("^// exit: (\\d+)");
+
+    /**
+     * 执行方式，{@code --cache} 会替换为临时目录并运行两次，分别读写缓存
+     */
+    private static final List<String> MODES = Arrays.asList(
+            "",
+            "--vm",
+            "--closures",
+            "--eager",
+            "--lazy",
+            "--opt-level=1",
+            "--opt-level=2",
+            "--no-fuse",
+            "--closures --opt-level=2",
+            "--vm --opt-level=2",
+            "--cache"
+    );
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final Path script;
+
+    private final String mode;
+
+    public GoldenTest(String name, String mode) throws URISyntaxException {
+        this.script = directory().resolve(name);
+        this.mode = mode;
+    }
+
+    private static Path directory() throws URISyntaxException {
+        return Paths.get(GoldenTest.class.getResource(GOLDEN).toURI());
+    }
+
+    @Parameters(name = "{0} [{1}]")
+    public static Collection<Object[]> parameters() throws IOException, URISyntaxException {
+        List<Object[]> parameters = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory())) {
+            List<String> names = files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(".lox"))
+                    .sorted()
+                    .collect(Collectors.toList());
+            for (String name : names) {
+                for (String mode : MODES) {
+                    parameters.add(new Object[]{name, mode});
+                }
+            }
+        }
+        return parameters;
+    }
+
+    @Test
+    public void matchesGoldenOutput() throws IOException, InterruptedException {
+        String source = new String(Files.readAllBytes(script), Charset.defaultCharset());
+        int exitCode = expectedExitCode(source);
+        // --lazy 下函数体在第一次调用时才解析，函数体中的编译错误不会在运行前报告
+        Assume.assumeFalse(mode.equals("--lazy") && exitCode == 65);
+
+        String fileName = script.getFileName().toString();
+        Path out = script.resolveSibling(fileName.substring(0, fileName.length() - ".lox".length()) + ".out");
+        String expected = new String(Files.readAllBytes(out), Charset.defaultCharset()).replace("\r\n", "\n");
+
+        List<String> options = options();
+        int runs = mode.equals("--cache") ? 2 : 1;
+        for (int i = 0; i < runs; i++) {
+            LoxProcess result = LoxProcess.run(script, options);
+            assertEquals(mode + " output", expected, result.output);
+            assertEquals(mode + " exit code", exitCode, result.exitCode);
+        }
+    }
+
+    private List<String> options() throws IOException {
+        if (mode.isEmpty()) return new ArrayList<>();
+        if (mode.equals("--cache")) {
+            List<String> options = new ArrayList<>();
+            options.add("--cache=" + temporaryFolder.newFolder("cache"));
+            return options;
+        }
+        return new ArrayList<>(Arrays.asList(mode.split(" ")));
+    }
+
+    private static int expectedExitCode(String source) {
+        Matcher matcher = EXIT.matcher(source);
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : 0;
+    }
+}
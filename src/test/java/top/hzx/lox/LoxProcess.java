@@ -0,0 +1,73 @@
+package top.hzx.lox;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在单独的进程中运行解释器
+ * <p>{@link Lox} 的错误标志和执行方式都是静态字段，出错时还会退出进程，每次运行都需要一个新的 JVM。
+ * 标准输出和标准错误合并在一起，与命令行中看到的顺序相同</p>
+ */
+final class LoxProcess {
+
+    private static final long TIMEOUT_SECONDS = 120;
+
+    final int exitCode;
+
+    final String output;
+
+    private LoxProcess(int exitCode, String output) {
+        this.exitCode = exitCode;
+        this.output = output;
+    }
+
+    /**
+     * @param script  脚本
+     * @param options 命令行选项，放在脚本之前
+     * @return 退出码和输出
+     */
+    static LoxProcess run(Path script, List<String> options) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(classPath());
+        command.add(Lox.class.getName());
+        command.addAll(options);
+        command.add(script.toString());
+
+        Path output = Files.createTempFile("lox", ".out");
+        try {
+            Process process = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(output.toFile())
+                    .start();
+            if (!process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                throw new AssertionError("Timed out: " + String.join(" ", command));
+            }
+            String text = new String(Files.readAllBytes(output), Charset.defaultCharset());
+            return new LoxProcess(process.exitValue(), text.replace("\r\n", "\n"));
+        } finally {
+            Files.deleteIfExists(output);
+        }
+    }
+
+    /**
+     * 解释器只依赖编译后的类，lombok 只在编译时使用
+     */
+    private static String classPath() {
+        try {
+            return new File(Lox.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package top.hzx.tool;
+
+import top.hzx.lox.ast.Interpreter;
+import top.hzx.lox.ast.Resolver;
+import top.hzx.lox.ast.Stmt;
+import top.hzx.lox.ast.Superinstructions;
+import top.hzx.lox.parser.Parser;
+import top.hzx.lox.scanner.Scanner;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 比较解释器通过 accept 分派和按节点种类 switch 分派的执行时间
+ * <p>每个脚本在同一个 JVM 中先预热，再交替运行两种方式各若干轮，输出每轮的平均时间和标准差。
+ * 每轮都重新解析，节点上的特化和缓存不会跨轮保留。
+ * 放在测试源码中，不随解释器打包，{@code mvn test-compile} 之后以
+ * {@code java -cp target/classes:target/test-classes top.hzx.tool.DispatchBenchmark bench/*.lox} 运行</p>
+ */
+public class DispatchBenchmark {
+
+    private static final int WARMUP = 3;
+
+    private static final int MEASUREMENT = 5;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: dispatch_benchmark <script>...");
+            System.exit(64);
+        }
+        PrintStream out = System.out;
+        System.out.printf("%-24s %-8s %12s %10s%n", "script", "dispatch", "avg (ms)", "error");
+        for (String arg : args) {
+            Path file = Paths.get(arg);
+            String source = new String(Files.readAllBytes(file), Charset.defaultCharset());
+            List<Double> visitor = new ArrayList<>();
+            List<Double> switches = new ArrayList<>();
+            // 脚本的输出不计入比较
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+            }));
+            try {
+                for (int i = 0; i < WARMUP + MEASUREMENT; i++) {
+                    double visitorTime = run(source, false);
+                    double switchTime = run(source, true);
+                    if (i < WARMUP) continue;
+                    visitor.add(visitorTime);
+                    switches.add(switchTime);
+                }
+            } finally {
+                System.setOut(out);
+            }
+            print(file.getFileName().toString(), "visitor", visitor);
+            print(file.getFileName().toString(), "switch", switches);
+        }
+    }
+
+    /**
+     * @return 执行时间，单位毫秒
+     */
+    private static double run(String source, boolean switchDispatch) {
+        List<Stmt> stmts = new Parser(new Scanner(source)).parse();
+        new Resolver().resolve(stmts);
+        new Superinstructions().fuse(stmts);
+        Interpreter interpreter = new Interpreter();
+        interpreter.setSwitchDispatch(switchDispatch);
+        long start = System.nanoTime();
+        interpreter.interpret(stmts);
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    private static void print(String script, String dispatch, List<Double> times) {
+        double sum = 0;
+        for (double time : times) {
+            sum += time;
+        }
+        double mean = sum / times.size();
+        double variance = 0;
+        for (double time : times) {
+            variance += (time - mean) * (time - mean);
+        }
+        double error = Math.sqrt(variance / (times.size() - 1));
+        System.out.printf("%-24s %-8s %12.1f %10.1f%n", script, dispatch, mean, error);
+    }
+}